@@ -0,0 +1,53 @@
+package lock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 先自旋再等待：
+ *      1. 记录最近拿到锁之前等待了多久(指数加权平均)，用它估计锁一般被持有多久
+ *      2. 估计值小于spinThreshold时，先在spinThreshold时间内不等待直接重试，锁很快会被释放，自旋比睡眠醒来更快
+ *      3. 自旋超过spinThreshold还没拿到，或者估计值本来就大，交给parkPolicy计算等待时间
+ */
+public class AdaptiveSpinBackoffPolicy implements BackoffPolicy {
+
+    private final long spinThresholdNanos;
+    private final BackoffPolicy parkPolicy;
+    private volatile long averageWaitNanos;// 最近拿到锁之前等待时间的加权平均，多线程更新时丢失个别样本没有关系
+
+    /**
+     * @param spinThreshold 预计的持有时间小于这个值才自旋，同时也是一次获取中自旋的最长时间
+     * @param parkPolicy 不自旋时使用的策略
+     */
+    public AdaptiveSpinBackoffPolicy(long spinThreshold, TimeUnit unit, BackoffPolicy parkPolicy) {
+        this.spinThresholdNanos = unit.toNanos(spinThreshold);
+        this.parkPolicy = parkPolicy;
+    }
+
+    @Override
+    public Backoff newBackoff() {
+        return new Backoff() {
+            private final long startNanos = System.nanoTime();
+            private final boolean spin = averageWaitNanos < spinThresholdNanos;
+            private Backoff park;
+
+            public long nextDelayNanos() {
+                if (spin && System.nanoTime() - startNanos < spinThresholdNanos) {
+                    return 0;
+                }
+                if (park == null) {
+                    park = parkPolicy.newBackoff();
+                }
+                return park.nextDelayNanos();
+            }
+
+            public void onAcquired() {
+                long waited = System.nanoTime() - startNanos;
+                // 新样本占1/8的权重
+                averageWaitNanos = averageWaitNanos + ((waited - averageWaitNanos) >> 3);
+                if (park != null) {
+                    park.onAcquired();
+                }
+            }
+        };
+    }
+}
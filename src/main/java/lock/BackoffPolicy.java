@@ -0,0 +1,32 @@
+package lock;
+
+/**
+ * 获取锁失败后的重试间隔策略，每把锁可以设置自己的策略。
+ * 每次获取锁开始时用newBackoff()取得一个新的Backoff，整个重试过程都用它计算间隔，
+ * 所以同一个策略可以被多个线程、多把锁同时使用
+ */
+public interface BackoffPolicy {
+
+    /**
+     * 开始一次新的获取锁，返回这次获取过程中使用的重试间隔序列
+     * @return
+     */
+    Backoff newBackoff();
+
+    /**
+     * 一次获取锁过程中的重试间隔序列，只被发起获取的线程(或者同一个异步流程)使用
+     */
+    interface Backoff {
+
+        /**
+         * 下一次重试之前等待的时间
+         * @return 纳秒，0表示不等待直接重试(自旋)
+         */
+        long nextDelayNanos();
+
+        /**
+         * 拿到锁时调用，自适应的策略根据这次等了多久调整以后的行为
+         */
+        void onAcquired();
+    }
+}
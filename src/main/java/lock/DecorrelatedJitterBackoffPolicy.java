@@ -0,0 +1,38 @@
+package lock;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 去相关抖动(decorrelated jitter)：下一次间隔在[base, 上一次间隔*3]里随机取值，不超过max。
+ * 间隔随重试次数增长，但每个客户端的序列互不相关，竞争激烈时比纯指数退避更分散
+ */
+public class DecorrelatedJitterBackoffPolicy implements BackoffPolicy {
+
+    private final long baseNanos;
+    private final long maxNanos;
+
+    public DecorrelatedJitterBackoffPolicy(long base, long max, TimeUnit unit) {
+        if (base <= 0 || max < base) {
+            throw new IllegalArgumentException("base must greater than 0 and max can not less than base");
+        }
+        this.baseNanos = unit.toNanos(base);
+        this.maxNanos = unit.toNanos(max);
+    }
+
+    @Override
+    public Backoff newBackoff() {
+        return new Backoff() {
+            private long previous = baseNanos;
+
+            public long nextDelayNanos() {
+                long upper = Math.min(maxNanos, previous > maxNanos / 3 ? maxNanos : previous * 3);
+                previous = upper <= baseNanos ? baseNanos : ThreadLocalRandom.current().nextLong(baseNanos, upper + 1);
+                return previous;
+            }
+
+            public void onAcquired() {
+            }
+        };
+    }
+}
@@ -1,5 +1,6 @@
 package lock;
 
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -34,4 +35,22 @@ public interface DistributeLock {
      * @throws Exception
      */
     void unlock() throws Exception;
+
+    /**
+     * 异步获取锁，不占用调用线程，拿到锁时future完成，通过返回的LockHandle释放锁。
+     * 注意：zookeeper实现的future在zookeeper的事件线程里完成，不带Async的后续动作(thenRun、thenAccept等)
+     * 也在这个线程里执行，不能在里面阻塞，更不能同步获取另一把锁(例如 lockAsync().thenRun(() -> other.lock()))，
+     * 同步获取要等的回调也在这个线程里执行，整个会话会卡死。需要阻塞的后续动作请用thenRunAsync等方法指定线程池
+     * @return
+     */
+    CompletableFuture<LockHandle> lockAsync();
+
+    /**
+     * 异步在规定时间内获取锁，超时没有拿到锁时future以null完成。
+     * future完成所在的线程和lockAsync一样，后续动作不能阻塞
+     * @param time
+     * @param unit
+     * @return
+     */
+    CompletableFuture<LockHandle> tryLockAsync(long time, TimeUnit unit);
 }
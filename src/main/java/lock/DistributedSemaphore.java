@@ -0,0 +1,33 @@
+package lock;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分布式信号量，限制整个集群同时持有的许可数量
+ */
+public interface DistributedSemaphore {
+
+    /**
+     * 阻塞等待获取permits个许可
+     * @param permits
+     * @throws Exception
+     */
+    void acquire(int permits) throws Exception;
+
+    /**
+     * 在规定时间内等待获取permits个许可，得到返回true
+     * @param permits
+     * @param time
+     * @param unit
+     * @return
+     * @throws Exception
+     */
+    boolean tryAcquire(int permits, long time, TimeUnit unit) throws Exception;
+
+    /**
+     * 归还permits个本进程获取的许可，不要求是获取许可的那个线程
+     * @param permits
+     * @throws Exception
+     */
+    void release(int permits) throws Exception;
+}
@@ -0,0 +1,45 @@
+package lock;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 指数退避：第n次重试前等待 base * 2^n，不超过max。
+ * 开启jitter时在[0, 计算出的间隔]里随机取值(full jitter)，同时失败的客户端不会在同一时刻一起重试
+ */
+public class ExponentialBackoffPolicy implements BackoffPolicy {
+
+    private final long baseNanos;
+    private final long maxNanos;
+    private final boolean jitter;
+
+    public ExponentialBackoffPolicy(long base, long max, TimeUnit unit) {
+        this(base, max, unit, true);
+    }
+
+    public ExponentialBackoffPolicy(long base, long max, TimeUnit unit, boolean jitter) {
+        if (base <= 0 || max < base) {
+            throw new IllegalArgumentException("base must greater than 0 and max can not less than base");
+        }
+        this.baseNanos = unit.toNanos(base);
+        this.maxNanos = unit.toNanos(max);
+        this.jitter = jitter;
+    }
+
+    @Override
+    public Backoff newBackoff() {
+        return new Backoff() {
+            private long current = baseNanos;
+
+            public long nextDelayNanos() {
+                long delay = current;
+                // 到达上限后不再翻倍，避免溢出
+                current = current >= maxNanos / 2 ? maxNanos : current * 2;
+                return jitter ? ThreadLocalRandom.current().nextLong(delay + 1) : delay;
+            }
+
+            public void onAcquired() {
+            }
+        };
+    }
+}
@@ -0,0 +1,267 @@
+package lock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * 合并执行临界区(flat combining)：线程把要在某个key的锁里执行的任务放进这个key的队列，
+ * 抢到combiner身份的线程获取一次分布式锁，把队列里的任务一批执行完再释放，
+ * 其它线程不用各自获取、释放分布式锁，热点key上的吞吐量取决于任务本身，而不是加锁的往返。
+ *      1. 每个key同一时刻最多一个combiner，combiner就是提交任务的线程。自己的任务执行完后，
+ *         如果还有execute()的调用方在等待结果，就把combiner身份交给它们然后返回；
+ *         没有人可以接手时(只剩submit提交的任务)才继续执行到队列为空
+ *      2. 一次持有锁最多执行maxBatch个任务，然后释放，让其它进程也有机会拿到锁
+ *      3. 获取锁失败时，队列里的任务都以这个异常结束
+ * 任务在combiner线程里执行，不能依赖ThreadLocal，也不能在任务里等待同一个key上的其它任务
+ * @param <L> 锁的类型
+ */
+public class LockCombiningExecutor<L> {
+
+    private static Logger logger = LoggerFactory.getLogger(LockCombiningExecutor.class);
+
+    private static final int DEFAULT_MAX_BATCH = 64;
+
+    /**
+     * 不同类型的锁获取、释放的方法不一样
+     */
+    private interface Locker<L> {
+        void lock(L lock) throws Exception;
+
+        void unlock(L lock) throws Exception;
+    }
+
+    private final LockRegistry<L> registry;
+    private final Locker<L> locker;
+    private final ConcurrentMap<String, KeyQueue> queues = new ConcurrentHashMap<String, KeyQueue>();// 有任务在排队的key
+    private volatile int maxBatch = DEFAULT_MAX_BATCH;// 一次持有锁最多执行的任务数
+
+    private LockCombiningExecutor(LockRegistry<L> registry, Locker<L> locker) {
+        this.registry = registry;
+        this.locker = locker;
+    }
+
+    /**
+     * 使用zookeeper锁等DistributeLock
+     * @param registry
+     * @param <L>
+     * @return
+     */
+    public static <L extends DistributeLock> LockCombiningExecutor<L> ofDistributeLocks(LockRegistry<L> registry) {
+        return new LockCombiningExecutor<L>(registry, new Locker<L>() {
+            public void lock(L lock) throws Exception {
+                lock.lock();
+            }
+
+            public void unlock(L lock) throws Exception {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * 使用redis锁等java.util.concurrent.locks.Lock
+     * @param registry
+     * @param <L>
+     * @return
+     */
+    public static <L extends Lock> LockCombiningExecutor<L> ofLocks(LockRegistry<L> registry) {
+        return new LockCombiningExecutor<L>(registry, new Locker<L>() {
+            public void lock(L lock) {
+                lock.lock();
+            }
+
+            public void unlock(L lock) {
+                lock.unlock();
+            }
+        });
+    }
+
+    /**
+     * @param maxBatch 一次持有锁最多执行的任务数
+     */
+    public void setMaxBatch(int maxBatch) {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("maxBatch must greater than 0");
+        }
+        this.maxBatch = maxBatch;
+    }
+
+    /**
+     * 提交在key的锁里执行的任务。当前没有combiner时由调用线程获取锁并执行任务，否则交给正在执行的combiner。
+     * 调用线程成为combiner时，自己的任务执行完、并且有execute()的调用方可以接手才返回，否则继续执行队列里的任务
+     * @param key
+     * @param task
+     * @param <T>
+     * @return 任务的结果
+     */
+    public <T> CompletableFuture<T> submit(String key, Callable<T> task) {
+        Task<T> queued = new Task<T>(task);
+        combine(key, enqueue(key, queued), queued);
+        return queued.future;
+    }
+
+    private KeyQueue enqueue(String key, Task<?> task) {
+        KeyQueue queue = queues.get(key);
+        if (queue == null) {
+            KeyQueue created = new KeyQueue();
+            queue = queues.putIfAbsent(key, created);
+            if (queue == null) {
+                queue = created;
+            }
+        }
+        queue.tasks.add(task);
+        return queue;
+    }
+
+    /**
+     * 在key的锁里执行任务，等待结果。等待期间combiner交出身份时由这个线程接手
+     * @param key
+     * @param task
+     * @param <T>
+     * @return
+     * @throws Exception 任务或者获取锁抛出的异常
+     */
+    public <T> T execute(String key, Callable<T> task) throws Exception {
+        Task<T> queued = new Task<T>(task);
+        KeyQueue queue = enqueue(key, queued);
+        combine(key, queue, queued);
+        // 任务已经在队列里，combiner可能已经把身份交给了这个线程，被中断也要等到任务完成，返回前恢复中断标识
+        boolean interrupted = false;
+        while (!queued.future.isDone()) {
+            synchronized (queue) {
+                queue.waiting.add(queued);
+                try {
+                    // combiner每执行完一批都会叫醒等待的线程，没有combiner并且还有任务时自己来执行
+                    while (!queued.future.isDone() && (queue.combining.get() || queue.tasks.isEmpty())) {
+                        try {
+                            queue.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                } finally {
+                    queue.waiting.remove(queued);
+                }
+            }
+            combine(key, queue, queued);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            return queued.future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * 抢combiner身份，抢到就一批一批地执行。自己的任务完成后，有execute()的调用方还在等待就交出身份返回，
+     * 剩下的任务由它接手；没有人等待时submit提交的任务没有人会来执行，继续执行到队列为空。
+     * 释放身份后要再检查一次队列，否则在最后一次取任务和释放身份之间放进来的任务没有人执行
+     * @param own 调用线程自己提交的任务
+     */
+    private void combine(String key, KeyQueue queue, Task<?> own) {
+        while (!queue.tasks.isEmpty() && queue.combining.compareAndSet(false, true)) {
+            try {
+                runBatch(key, queue);
+            } finally {
+                queue.combining.set(false);
+            }
+            synchronized (queue) {
+                if (!queue.waiting.isEmpty()) {
+                    // 任务已经完成的返回结果，没有完成的去抢combiner身份
+                    queue.notifyAll();
+                    if (own.future.isDone() && queue.hasPendingWaiter()) {
+                        return;
+                    }
+                }
+            }
+        }
+        if (queue.tasks.isEmpty()) {
+            // 被移除后还拿着旧队列的线程会自己成为combiner，和新队列的combiner之间仍然由分布式锁互斥
+            queues.remove(key, queue);
+        }
+    }
+
+    private void runBatch(String key, KeyQueue queue) {
+        L lock = registry.getLock(key);
+        try {
+            locker.lock(lock);
+        } catch (Exception e) {
+            logger.error("combining lock error,key:{}", key, e);
+            Task<?> task;
+            while ((task = queue.tasks.poll()) != null) {
+                task.future.completeExceptionally(e);
+            }
+            return;
+        }
+        try {
+            int batch = maxBatch;
+            for (int i = 0; i < batch; i++) {
+                Task<?> task = queue.tasks.poll();
+                if (task == null) {
+                    break;
+                }
+                task.run();
+            }
+        } finally {
+            try {
+                locker.unlock(lock);
+            } catch (Exception e) {
+                logger.error("combining unlock error,key:{}", key, e);
+            }
+        }
+    }
+
+    /**
+     * 一个key上排队的任务和combiner标识
+     */
+    private static class KeyQueue {
+        final Queue<Task<?>> tasks = new ConcurrentLinkedQueue<Task<?>>();
+        final AtomicBoolean combining = new AtomicBoolean(false);
+        final Set<Task<?>> waiting = new HashSet<Task<?>>();// execute()里等待结果的任务，只在持有this的锁时读写
+
+        /**
+         * 是否有execute()的调用方还在等待没有完成的任务，可以接手combiner身份
+         */
+        boolean hasPendingWaiter() {
+            for (Task<?> task : waiting) {
+                if (!task.future.isDone()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static class Task<T> {
+        final Callable<T> callable;
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        Task(Callable<T> callable) {
+            this.callable = callable;
+        }
+
+        void run() {
+            try {
+                future.complete(callable.call());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+}
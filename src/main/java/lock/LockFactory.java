@@ -0,0 +1,28 @@
+package lock;
+
+/**
+ * 按key创建锁对象，交给LockRegistry缓存
+ * @param <L> 锁的类型
+ */
+public interface LockFactory<L> {
+
+    /**
+     * 创建key对应的锁对象
+     * @param key
+     * @return
+     */
+    L newLock(String key);
+
+    /**
+     * 锁对象当前没有被持有，也没有线程在等待，可以从缓存中回收
+     * @param lock
+     * @return
+     */
+    boolean isIdle(L lock);
+
+    /**
+     * 锁对象被回收(或者创建后没有放进缓存)，不会再被使用，释放它注册的监听器等资源
+     * @param lock
+     */
+    void onEvicted(L lock);
+}
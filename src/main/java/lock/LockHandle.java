@@ -0,0 +1,27 @@
+package lock;
+
+/**
+ * 一次成功的加锁，由异步获取锁的接口返回。
+ * 锁属于这个句柄而不属于某个线程，任何线程都可以通过它释放锁
+ */
+public interface LockHandle {
+
+    /**
+     * 本次加锁对应的锁节点
+     * @return
+     */
+    String getLockPath();
+
+    /**
+     * 本次加锁的fencing token，同一把锁后拿到的一定比先拿到的大。
+     * 写下游存储时带上它，存储拒绝比见过的最大值还小的token，这样GC停顿、网络分区后醒来的旧持有者就写不进去
+     * @return
+     */
+    long getFencingToken();
+
+    /**
+     * 释放锁，重复调用只有第一次生效
+     * @throws Exception
+     */
+    void unlock() throws Exception;
+}
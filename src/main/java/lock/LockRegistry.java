@@ -0,0 +1,174 @@
+package lock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 按key缓存锁对象，同一个key在本进程内始终拿到同一个锁对象，避免每次使用都重新创建锁(以及创建时访问zookeeper)。
+ *      1. 缓存按key的hash分成多个段，每段一把锁，不同段的访问互不影响
+ *      2. 每段按访问顺序排列，超过容量或者空闲超过maxIdle的锁对象会被回收
+ *      3. 正在被持有或者有线程在等待的锁对象不会被回收，否则同一个key会出现两个锁对象，
+ *         持有锁的线程重入时会在zookeeper上排到自己后面
+ * @param <L> 锁的类型
+ */
+public class LockRegistry<L> {
+
+    private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+    private static final int DEFAULT_MAX_SIZE = 10000;
+    private static final long DEFAULT_MAX_IDLE_MINUTES = 10;
+
+    private final LockFactory<L> lockFactory;
+    private final Segment<L>[] segments;
+
+    public LockRegistry(LockFactory<L> lockFactory) {
+        this(lockFactory, DEFAULT_CONCURRENCY_LEVEL, DEFAULT_MAX_SIZE, DEFAULT_MAX_IDLE_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @param lockFactory 创建锁对象
+     * @param concurrencyLevel 分段个数，会向上取整为2的幂
+     * @param maxSize 最多缓存的锁对象个数
+     * @param maxIdle 锁对象最长空闲时间
+     * @param unit
+     */
+    @SuppressWarnings("unchecked")
+    public LockRegistry(LockFactory<L> lockFactory, int concurrencyLevel, int maxSize, long maxIdle, TimeUnit unit) {
+        if (concurrencyLevel <= 0 || maxSize <= 0) {
+            throw new IllegalArgumentException("concurrencyLevel and maxSize must greater than 0");
+        }
+        int segmentCount = 1;
+        while (segmentCount < concurrencyLevel) {
+            segmentCount <<= 1;
+        }
+        this.lockFactory = lockFactory;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<L>(lockFactory, Math.max(1, maxSize / segmentCount), unit.toNanos(maxIdle));
+        }
+    }
+
+    /**
+     * 取得key对应的锁对象，没有则创建
+     * @param key
+     * @return
+     */
+    public L getLock(String key) {
+        Segment<L> segment = segmentFor(key);
+        L lock = segment.get(key);
+        if (lock != null) {
+            return lock;
+        }
+        // 在段锁外面创建，创建锁对象可能要访问zookeeper，不能阻塞同一段的其它key
+        L created = lockFactory.newLock(key);
+        L existing = segment.putIfAbsent(key, created);
+        if (existing != created) {
+            // 别的线程先放进去了，新建的这个不会再被使用
+            lockFactory.onEvicted(created);
+        }
+        return existing;
+    }
+
+    /**
+     * 当前缓存的锁对象个数
+     * @return
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<L> segment : segments) {
+            segment.lock();
+            try {
+                size += segment.entries.size();
+            } finally {
+                segment.unlock();
+            }
+        }
+        return size;
+    }
+
+    private Segment<L> segmentFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return segments[h & (segments.length - 1)];
+    }
+
+    private static class Entry<L> {
+        final L lock;
+        long lastAccessNanos;
+
+        Entry(L lock, long lastAccessNanos) {
+            this.lock = lock;
+            this.lastAccessNanos = lastAccessNanos;
+        }
+    }
+
+    /**
+     * 缓存的一段，按访问顺序排列，最久没有访问的在最前面
+     */
+    private static class Segment<L> extends ReentrantLock {
+        final LinkedHashMap<String, Entry<L>> entries = new LinkedHashMap<String, Entry<L>>(16, 0.75f, true);
+        private final LockFactory<L> lockFactory;
+        private final int maxSize;// 本段最多缓存的锁对象个数
+        private final long maxIdleNanos;// 锁对象最长空闲时间
+
+        Segment(LockFactory<L> lockFactory, int maxSize, long maxIdleNanos) {
+            this.lockFactory = lockFactory;
+            this.maxSize = maxSize;
+            this.maxIdleNanos = maxIdleNanos;
+        }
+
+        L get(String key) {
+            lock();
+            try {
+                long now = System.nanoTime();
+                Entry<L> entry = entries.get(key);
+                if (entry != null) {
+                    entry.lastAccessNanos = now;
+                }
+                evict(now);
+                return entry == null ? null : entry.lock;
+            } finally {
+                unlock();
+            }
+        }
+
+        L putIfAbsent(String key, L lock) {
+            lock();
+            try {
+                long now = System.nanoTime();
+                Entry<L> entry = entries.get(key);
+                if (entry == null) {
+                    entry = new Entry<L>(lock, now);
+                    entries.put(key, entry);
+                } else {
+                    entry.lastAccessNanos = now;
+                }
+                evict(now);
+                return entry.lock;
+            } finally {
+                unlock();
+            }
+        }
+
+        /**
+         * 从最久没有访问的开始，回收超出容量或者空闲太久的锁对象，跳过正在使用的
+         */
+        private void evict(long now) {
+            Iterator<Map.Entry<String, Entry<L>>> iterator = entries.entrySet().iterator();
+            while (iterator.hasNext()) {
+                Entry<L> entry = iterator.next().getValue();
+                boolean overflow = entries.size() > maxSize;
+                boolean expired = now - entry.lastAccessNanos > maxIdleNanos;
+                if (!overflow && !expired) {
+                    break;
+                }
+                if (lockFactory.isIdle(entry.lock)) {
+                    iterator.remove();
+                    lockFactory.onEvicted(entry.lock);
+                }
+            }
+        }
+    }
+}
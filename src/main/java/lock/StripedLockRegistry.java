@@ -0,0 +1,80 @@
+package lock;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * 分条的锁：把数量没有上限的逻辑key按hash映射到固定个数的物理锁上，
+ * 不管有多少个不同的key，zookeeper里的根目录和redis里的key最多只有stripes个(加上单独加锁的热点key)。
+ *      1. 不同的key可能落在同一条上，它们之间会互斥，key越稀疏、条数越多，冲突越少
+ *      2. 热点key可以通过setExactKeys单独加锁，不和其它key共用一条
+ *      3. 映射只依赖String.hashCode和配置，所有进程的stripes和exactKeys必须一致，否则同一个key会映射到不同的锁上
+ * 同一个线程同时持有两个key时，它们可能落在同一条上：zookeeper的锁可重入没有问题，redis的锁不可重入，会等待自己
+ * @param <L> 锁的类型
+ */
+public class StripedLockRegistry<L> {
+
+    static final String STRIPE_PREFIX = "stripe-";// 分条的物理key前缀
+    static final String EXACT_PREFIX = "key-";// 单独加锁的物理key前缀，和分条的不会重名
+
+    private final LockRegistry<L> registry;
+    private final int stripes;
+    private volatile Set<String> exactKeys = Collections.emptySet();// 单独加锁的热点key
+
+    public StripedLockRegistry(LockFactory<L> lockFactory, int stripes) {
+        this(new LockRegistry<L>(lockFactory), stripes);
+    }
+
+    /**
+     * @param registry 缓存物理锁对象
+     * @param stripes 物理锁的个数
+     */
+    public StripedLockRegistry(LockRegistry<L> registry, int stripes) {
+        if (stripes <= 0) {
+            throw new IllegalArgumentException("stripes must greater than 0");
+        }
+        this.registry = registry;
+        this.stripes = stripes;
+    }
+
+    /**
+     * 设置单独加锁的热点key，冲突严重的条上的热点key放在这里就不再和其它key互斥。
+     * 所有进程的配置必须一致，修改时要让所有进程同时生效
+     * @param keys
+     */
+    public void setExactKeys(Collection<String> keys) {
+        this.exactKeys = Collections.unmodifiableSet(new HashSet<String>(keys));
+    }
+
+    /**
+     * 取得逻辑key对应的物理锁
+     * @param key
+     * @return
+     */
+    public L getLock(String key) {
+        return registry.getLock(physicalKeyOf(key));
+    }
+
+    /**
+     * 逻辑key对应的物理key，热点key是 key-原来的key，其它的是 stripe-条号
+     * @param key
+     * @return
+     */
+    public String physicalKeyOf(String key) {
+        if (exactKeys.contains(key)) {
+            return EXACT_PREFIX + key;
+        }
+        return STRIPE_PREFIX + stripeOf(key);
+    }
+
+    /**
+     * String.hashCode的算法是固定的，不同的jvm算出的条号也一样
+     */
+    private int stripeOf(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % stripes;
+    }
+}
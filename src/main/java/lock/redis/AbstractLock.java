@@ -46,12 +46,10 @@ public abstract class AbstractLock implements Lock {
 
     @Override
     public boolean tryLock(long time, TimeUnit unit)  {
-        System.out.println("start tryLock have arg");
         try {
             return lock(true,time,unit,false);
         } catch (InterruptedException e) {
             e.printStackTrace();
-            System.out.println(""+e);
         }
         return false;
     }
@@ -87,6 +85,19 @@ public abstract class AbstractLock implements Lock {
     protected abstract boolean lock(boolean useTimeout, long time, TimeUnit unit, boolean interrupt)
             throws InterruptedException;
 
+    /**
+     * 按重试策略给出的间隔等待，0表示让出cpu后马上重试
+     * @param delayNanos
+     * @throws InterruptedException
+     */
+    protected static void pause(long delayNanos) throws InterruptedException {
+        if (delayNanos <= 0) {
+            Thread.yield();
+        } else {
+            TimeUnit.NANOSECONDS.sleep(delayNanos);
+        }
+    }
+
     public Thread getExclusiveOwnerThread() {
         return exclusiveOwnerThread;
     }
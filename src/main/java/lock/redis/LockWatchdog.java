@@ -0,0 +1,186 @@
+package lock.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * redis锁的续期线程，一个进程共用一个：
+ *      1. 开启了自动续期的锁拿到锁后注册到这里，释放锁时注销
+ *      2. 每个周期把所有快到续期时间(有效期过去1/3)的锁放进一个lua脚本里批量续期，
+ *         同一个连接上的锁每个周期只有一次redis往返，不管进程里持有多少把锁
+ *      3. 脚本只续期值还是自己写入的那个值的key，值已经变了说明锁已经丢了(过期后被别人拿走)，不再续期
+ *      4. 续期走锁自己的连接(构造锁时传入的Jedis或者JedisPool)，不同redis上的锁按连接分组，每组一次往返
+ * 这样锁的有效时间可以设置得很短，持有者崩溃后锁很快就会过期，临界区再长也不会丢锁
+ */
+public class LockWatchdog {
+
+    private static final Logger logger = LoggerFactory.getLogger(LockWatchdog.class);
+
+    private static final long DEFAULT_TICK_MILLIS = 100;
+
+    /**
+     * KEYS:要续期的key ARGV:每个key依次是 原来的值,新的值,有效时间(毫秒)
+     * 返回每个key是否续期成功
+     */
+    private static final RedisLockScript RENEW_SCRIPT = new RedisLockScript(
+            "local result = {} " +
+            "for i = 1, #KEYS do " +
+            "  local base = (i - 1) * 3 " +
+            "  if redis.call('get', KEYS[i]) == ARGV[base + 1] then " +
+            "    redis.call('set', KEYS[i], ARGV[base + 2], 'PX', ARGV[base + 3]) result[i] = 1 " +
+            "  else result[i] = 0 end " +
+            "end " +
+            "return result");
+
+    private static volatile LockWatchdog instance;
+
+    private final Map<RedisBasedDistributedLock, Lease> leases = new ConcurrentHashMap<RedisBasedDistributedLock, Lease>();
+    private final Object renewMonitor = new Object();// 一次批量续期期间持有，注销时等待正在进行的续期结束
+
+    /**
+     * 进程共用的默认续期线程
+     * @return
+     */
+    public static LockWatchdog getInstance() {
+        if (instance == null) {
+            synchronized (LockWatchdog.class) {
+                if (instance == null) {
+                    instance = new LockWatchdog(DEFAULT_TICK_MILLIS);
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * @param tickMillis 检查周期
+     */
+    public LockWatchdog(long tickMillis) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "redis-lock-watchdog");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    renewLeases();
+                } catch (Exception e) {
+                    logger.error("renew lock lease error", e);
+                }
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 锁拿到后注册，开始自动续期
+     * @param lock
+     */
+    void register(RedisBasedDistributedLock lock) {
+        leases.put(lock, new Lease(lock.getLockValue(), System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lock.lockExpires / 3)));
+    }
+
+    /**
+     * 释放锁之前注销，停止续期。
+     * 如果这把锁正在续期，等这次续期的结果回来，保证返回后锁对象记录的值和redis里的一致
+     * @param lock
+     */
+    void unregister(RedisBasedDistributedLock lock) {
+        synchronized (renewMonitor) {
+            leases.remove(lock);
+        }
+    }
+
+    private void renewLeases() {
+        synchronized (renewMonitor) {
+            renewDueLeases();
+        }
+    }
+
+    private void renewDueLeases() {
+        long now = System.nanoTime();
+        // 按锁的连接分组，每组用组里任意一把锁的连接执行一次批量续期
+        Map<Object, Batch> batches = new LinkedHashMap<Object, Batch>();
+        for (Map.Entry<RedisBasedDistributedLock, Lease> entry : leases.entrySet()) {
+            Lease lease = entry.getValue();
+            if (lease.nextRenewNanos - now > 0) {
+                continue;
+            }
+            RedisBasedDistributedLock lock = entry.getKey();
+            Batch batch = batches.get(lock.connectionSource());
+            if (batch == null) {
+                batch = new Batch();
+                batches.put(lock.connectionSource(), batch);
+            }
+            lease.newValue = lock.newLockValue();
+            batch.locks.add(lock);
+            batch.leases.add(lease);
+            batch.keys.add(lock.lockKey);
+            batch.args.add(lease.value);
+            batch.args.add(lease.newValue);
+            batch.args.add(String.valueOf(lock.lockExpires));
+        }
+        for (Batch batch : batches.values()) {
+            try {
+                renewBatch(batch, now);
+            } catch (Exception e) {
+                // 这一组下个周期还会到期，再续一次，不影响其它连接上的锁
+                logger.error("renew lock lease error,lockKey:{}", batch.locks.get(0).lockKey, e);
+            }
+        }
+    }
+
+    private void renewBatch(Batch batch, long now) {
+        List<?> results = (List<?>) batch.locks.get(0).eval(RENEW_SCRIPT, batch.keys, batch.args);
+        for (int i = 0; i < batch.locks.size(); i++) {
+            RedisBasedDistributedLock lock = batch.locks.get(i);
+            Lease lease = batch.leases.get(i);
+            // 已经不是这次续期的那个租约(比如锁对象没有释放就又注册了一次)，这次的结果不再作数
+            if (leases.get(lock) != lease) {
+                continue;
+            }
+            if (Long.valueOf(1).equals(results.get(i)) && lock.renewLockValue(lease.value, lease.newValue)) {
+                lease.value = lease.newValue;
+                lease.nextRenewNanos = now + TimeUnit.MILLISECONDS.toNanos(lock.lockExpires / 3);
+            } else if (leases.remove(lock, lease)) {
+                logger.warn("lock lease lost,lockKey:{}", lock.lockKey);
+                lock.onLeaseLost(lease.value);
+            }
+        }
+    }
+
+    /**
+     * 同一个连接上要续期的锁
+     */
+    private static class Batch {
+        final List<RedisBasedDistributedLock> locks = new ArrayList<RedisBasedDistributedLock>();
+        final List<Lease> leases = new ArrayList<Lease>();
+        final List<String> keys = new ArrayList<String>();
+        final List<String> args = new ArrayList<String>();
+    }
+
+    /**
+     * 一把锁的续期状态，只在续期线程里读写(注册时除外)
+     */
+    private static class Lease {
+        volatile String value;// 当前写在redis里的值
+        volatile String newValue;// 本次续期要写入的值
+        volatile long nextRenewNanos;// 下次续期的时间(System.nanoTime)
+
+        Lease(String value, long nextRenewNanos) {
+            this.value = value;
+            this.nextRenewNanos = nextRenewNanos;
+        }
+    }
+}
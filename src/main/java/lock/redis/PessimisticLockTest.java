@@ -82,7 +82,7 @@ public class PessimisticLockTest {
      * 顾客线程
      */
     static class PessClientThread implements Runnable{
-        Jedis jedis = null;
+        RedisUtil redisUtil = RedisUtil.getInstance();
         String key = "proNum";
         String clientList = "clientList"; //抢到商品数量的列表
         String clientName;
@@ -90,8 +90,8 @@ public class PessimisticLockTest {
 
         public PessClientThread(int num) {
             this.clientName = "编号="+num;
-            jedis = RedisUtil.getInstance().getJedis();
-            redisBasedDistributedLock = new RedisBasedDistributedLock(jedis,"lock.lock",5*1000);
+            // 锁对象共用连接池，每次访问redis时才借连接，不再每个顾客线程独占一个连接
+            redisBasedDistributedLock = new RedisBasedDistributedLock(redisUtil.getPool(),"lock.lock",5*1000);
         }
 
         @Override
@@ -104,16 +104,16 @@ public class PessimisticLockTest {
 
             while(true){
                 //先判断缓存是否有商品
-                if (Integer.parseInt(jedis.get(key))<=0)
+                if (Integer.parseInt(redisUtil.get(key))<=0)
                     break;
 
                 // 缓存有商品，取锁，商品数量-1
                 System.out.println("顾客:" + clientName + "开始抢商品");
                 if (redisBasedDistributedLock.tryLock(3, TimeUnit.SECONDS)){
-                    int prdNum = Integer.valueOf(jedis.get(key)); //再次取得商品缓存数目
+                    int prdNum = Integer.valueOf(redisUtil.get(key)); //再次取得商品缓存数目
                     if (prdNum > 0) {
-                        jedis.decr(key);//商品数减1
-                        jedis.sadd(clientList, clientName);// 抢到商品记录一下
+                        redisUtil.decr(key);//商品数减1
+                        redisUtil.sadd(clientList, clientName);// 抢到商品记录一下
                         System.out.println("好高兴，顾客:" + clientName + "抢到商品");
                     } else {
                         System.out.println("悲剧了，库存为0，顾客:" + clientName + "没有抢到商品");
@@ -124,7 +124,6 @@ public class PessimisticLockTest {
             }
             //释放资源
             redisBasedDistributedLock = null;
-            RedisUtil.returnResource(jedis);
         }
     }
 
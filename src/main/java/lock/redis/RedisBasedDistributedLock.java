@@ -8,8 +8,15 @@ package lock.redis;
  *                    SETNX当且仅当 key 不存在，将 key 的值设为 value ，并返回1；若给定的 key 已经存在，则 SETNX 不做任何动作，并返回0
  *     ******/
 
+import lock.BackoffPolicy;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
 /*****
@@ -17,109 +24,311 @@ import java.util.concurrent.TimeUnit;
  */
 public class RedisBasedDistributedLock extends AbstractLock{
 
+     //构造时传入的单个连接，多个线程共用时按连接加锁串行使用
      private Jedis jedis;
+     //连接池，每次访问redis时借一个连接，用完马上还回去
+     private JedisPool pool;
      //锁的名字
      protected String lockKey;
      //锁的有效时间，单位毫秒
      protected long lockExpires;
+     //本次持有锁时写入的值，续期后会变成续期写入的值
+     private volatile String lockValue;
+     //自动续期线程，为null表示不续期，锁在lockExpires后过期
+     private LockWatchdog leaseWatchdog;
+     //fencing计数器的key，每次拿到锁加1
+     protected String fencingKey;
+     //本次持有锁的fencing token
+     private volatile long fencingToken;
+     //释放通知，为null表示等待时定时重试
+     private RedisLockNotifier notifier;
+     //没有释放通知时的重试间隔策略，为null表示每RETRY_INTERVAL_MILLIS重试一次
+     private BackoffPolicy backoffPolicy;
+     //默认模式下生成和比较过期时间的时钟，为null表示使用本机时间
+     private RedisServerClock serverClock;
+
+    private static final long RETRY_INTERVAL_MILLIS = 50;// 没有释放通知时的重试间隔
+    private static final long MAX_NOTIFY_WAIT_MILLIS = 1000;// 等待释放通知的最长时间，通知丢失时靠它兜底
+
+     //token模式：锁的值是随机token，由redis的过期时间控制有效期，否则锁的值是客户端算出的过期时间
+     private final boolean tokenMode;
+
+    /**
+     * KEYS[1]:锁 KEYS[2]:fencing计数器 ARGV[1]:新的过期时间 ARGV[2]:当前时间 ARGV[3]:锁的有效时间(毫秒)
+     * 锁的值是过期时间，没有过期就返回负的剩余时间(至少-1)，否则写入新的过期时间并返回递增后的token。
+     * 同时设置redis的过期时间，持有者的时钟比别人快时写入的过期时间偏大，也会被redis按ttl清除
+     */
+    private static final RedisLockScript ACQUIRE_SCRIPT = new RedisLockScript(
+            "local v = redis.call('get', KEYS[1]) " +
+            "if v and tonumber(v) >= tonumber(ARGV[2]) then return math.min(tonumber(ARGV[2]) - tonumber(v), -1) end " +
+            "redis.call('set', KEYS[1], ARGV[1], 'PX', ARGV[3]) " +
+            "return redis.call('incr', KEYS[2])");
+
+    /**
+     * token模式 KEYS[1]:锁 KEYS[2]:fencing计数器 ARGV[1]:随机token ARGV[2]:锁的有效时间(毫秒)
+     * SET NX PX成功就返回递增后的token，否则返回负的剩余时间(至少-1)
+     */
+    private static final RedisLockScript TOKEN_ACQUIRE_SCRIPT = new RedisLockScript(
+            "if redis.call('set', KEYS[1], ARGV[1], 'NX', 'PX', ARGV[2]) then return redis.call('incr', KEYS[2]) end " +
+            "return math.min(-redis.call('pttl', KEYS[1]), -1)");
+
+    /**
+     * KEYS[1]:锁 ARGV[1]:本次持有锁时写入的值 ARGV[2]:释放通知的频道
+     * 值还是自己写入的才删除，并发布释放通知，不会误删别人的锁
+     */
+    private static final RedisLockScript UNLOCK_SCRIPT = new RedisLockScript(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then " +
+            "  redis.call('del', KEYS[1]) redis.call('publish', ARGV[2], '') return 1 " +
+            "end " +
+            "return 0");
 
     public RedisBasedDistributedLock(Jedis jedis, String lockKey, long lockExpires) {
+        this(jedis, lockKey, lockExpires, false);
+    }
+
+    /**
+     * @param tokenMode 为true时获取锁是一次SET NX PX(连同fencing计数器在一个脚本里)，值是随机token，
+     *                  不依赖各个客户端的时钟；和默认模式的值格式不同，同一个lockKey不能混用两种模式
+     */
+    public RedisBasedDistributedLock(Jedis jedis, String lockKey, long lockExpires, boolean tokenMode) {
+        this(lockKey, lockExpires, tokenMode);
         this.jedis = jedis;
+    }
+
+    /**
+     * 每次访问redis时从连接池借一个连接，只在获取、释放锁的那一次往返里占用，
+     * 等待期间不占连接，成千上万个锁对象可以共用一个很小的连接池
+     */
+    public RedisBasedDistributedLock(JedisPool pool, String lockKey, long lockExpires) {
+        this(pool, lockKey, lockExpires, false);
+    }
+
+    public RedisBasedDistributedLock(JedisPool pool, String lockKey, long lockExpires, boolean tokenMode) {
+        this(lockKey, lockExpires, tokenMode);
+        this.pool = pool;
+    }
+
+    private RedisBasedDistributedLock(String lockKey, long lockExpires, boolean tokenMode) {
         this.lockKey = lockKey;
         this.lockExpires = lockExpires;
+        this.fencingKey = lockKey + ":fencing";
+        this.tokenMode = tokenMode;
+    }
+
+    /**
+     * 开启自动续期：拿到锁后由续期线程在有效期过去1/3时延长有效期，直到释放锁，
+     * 这时lockExpires只决定持有者崩溃后锁多久能被别人拿到，可以设置得很短
+     * @param leaseWatchdog 一般用LockWatchdog.getInstance()，整个进程共用一个
+     */
+    public void setLeaseWatchdog(LockWatchdog leaseWatchdog) {
+        this.leaseWatchdog = leaseWatchdog;
+    }
+
+    /**
+     * 开启释放通知：没拿到锁的线程等待释放通知，不再定时访问redis
+     * @param notifier 一般用RedisLockNotifier.getInstance()，同一个连接池共用一个订阅连接
+     */
+    public void setNotifier(RedisLockNotifier notifier) {
+        this.notifier = notifier;
+    }
+
+    /**
+     * 设置没有释放通知时的重试间隔策略
+     * @param backoffPolicy
+     */
+    public void setBackoffPolicy(BackoffPolicy backoffPolicy) {
+        this.backoffPolicy = backoffPolicy;
+    }
+
+    /**
+     * 默认模式下按redis服务器时间生成和比较过期时间，各台机器之间的时钟偏差不再影响锁的过期判断。
+     * 值的格式不变，可以和没有开启的客户端混用(它们仍然受自己的时钟偏差影响)
+     * @param serverClock 同一个redis上的锁可以共用一个
+     */
+    public void setServerClock(RedisServerClock serverClock) {
+        this.serverClock = serverClock;
     }
 
     @Override
     protected void unlock0() {
-        // 判断锁是否过期
-        String value = jedis.get(lockKey);
-        if (!isTimeExpire(value)) {
-            jedis.del(lockKey);
+        // 先停止续期，注销会等正在进行的续期结束，之后lockValue就是redis里应该有的值
+        if (leaseWatchdog != null) {
+            leaseWatchdog.unregister(this);
+        }
+        String expected = lockValue;
+        lockValue = null;
+        locked = false;
+        if (expected == null) {
+            return;
+        }
+        // 值已经不是自己写入的说明锁已经过期被别人拿走了，一次往返完成比较、删除和发布释放通知
+        eval(UNLOCK_SCRIPT, Collections.singletonList(lockKey),
+                Arrays.asList(expected, RedisLockNotifier.channelOf(lockKey)));
+    }
+
+    /**
+     * 拿到锁后记录写入的值，开启了自动续期就注册到续期线程
+     */
+    private void onLocked(String value) {
+        lockValue = value;
+        locked = true;
+        setExclusiveOwnerThread(Thread.currentThread());
+        if (leaseWatchdog != null) {
+            leaseWatchdog.register(this);
+        }
+    }
+
+    String getLockValue() {
+        return lockValue;
+    }
+
+    /**
+     * 续期时写入的新值：默认模式是新的过期时间，token模式不变
+     */
+    String newLockValue() {
+        return tokenMode ? lockValue : String.valueOf(currentTimeMillis() + lockExpires + 1);
+    }
+
+    /**
+     * 续期成功后更新记录的值
+     * @return 锁已经释放时返回false
+     */
+    synchronized boolean renewLockValue(String oldValue, String newValue) {
+        if (!locked || !oldValue.equals(lockValue)) {
+            return false;
         }
+        lockValue = newValue;
+        return true;
     }
 
+    /**
+     * 续期失败，redis里的值已经不是自己写入的，锁已经丢了
+     */
+    synchronized void onLeaseLost(String value) {
+        if (value.equals(lockValue)) {
+            locked = false;
+        }
+    }
 
 
-    //阻塞式获取锁的实现
+
+    //阻塞式获取锁的实现：没拿到锁就等待释放通知，不再反复访问redis
     @Override
     protected boolean lock(boolean useTimeout, long time, TimeUnit unit, boolean interrupt) throws InterruptedException {
-        System.out.println("判断线程是否中断...");
         if (interrupt)
             checkInterruption();
 
-        System.out.println("判断是否需要使用超时...");
-        long start = System.currentTimeMillis();
-        long timeout = unit.toMillis(time);
-        //在规定时间内获取锁
-        while(useTimeout?isTimeout(start,timeout):true){
-            System.out.println("在规定时间获取锁内判断线程是否中断...");
-            if (interrupt)
-                checkInterruption();
-
-            long lockExpireTime = System.currentTimeMillis()+lockExpires+1; //锁超时时间
-            String stringOfLockExpireTime = String.valueOf(lockExpireTime);
-
-            System.out.println("判断是否是第一次获取锁...");
-            if (jedis.setnx(lockKey,stringOfLockExpireTime)==1){ //第一次肯定获取锁
-                System.out.println("时第一次获取锁，并且设置标志...");
-                locked = true;
-                setExclusiveOwnerThread(Thread.currentThread());
-                return true;
-            }
+        // 本地的超时用单调时钟计算，墙上时钟被调整也不会提前或者推迟超时
+        long deadline = useTimeout ? System.nanoTime() + unit.toNanos(time) : 0;
+        RedisLockNotifier notifier = this.notifier;
+        // 先注册再尝试获取，获取失败之后发布的通知不会错过
+        RedisLockNotifier.Signal signal = notifier != null ? notifier.register(lockKey) : null;
+        BackoffPolicy.Backoff backoff = null;
+        boolean interrupted = false;
+        try {
+            while (true) {
+                if (interrupt)
+                    checkInterruption();
 
-            //获取锁的有效时间
-            System.out.println("不是第一次获取锁，需要判断锁是否过期...");
-            String value = jedis.get(lockKey);
-            if (value!=null && isTimeExpire(value)){  //检查锁是否过期
-                System.out.println("锁没有过期，有多个线程同时进入获取锁...");
-                // 假设多个线程(非单jvm)同时走到这里
-                String oldValue = jedis.getSet(lockKey, stringOfLockExpireTime); //原子操作
-                // 但是走到这里时每个线程拿到的oldValue肯定不可能一样(因为getset是原子性的)
-                // 加入拿到的oldValue依然是expired的，那么就说明拿到锁了
-                System.out.println("判断锁时候超时，不超时可以拿到锁...");
-                if (oldValue != null && isTimeExpire(oldValue)) {
-                    System.out.println("非第一次拿到锁，设置标识...");
-                    //成功获取到锁, 设置相关标识
-                    locked = true;
-                    setExclusiveOwnerThread(Thread.currentThread());
+                long generation = signal != null ? signal.generation() : 0;
+                long lockRemaining = acquire();
+                if (lockRemaining == 0) {
+                    if (backoff != null) {
+                        backoff.onAcquired();
+                    }
                     return true;
                 }
-            } else {
-                // TODO lock is not expired, enter next loop retrying
+
+                // lock is not expired, 等到锁被释放或者过期再重试
+                long waitNanos;
+                if (signal != null) {
+                    waitNanos = TimeUnit.MILLISECONDS.toNanos(Math.min(lockRemaining, MAX_NOTIFY_WAIT_MILLIS));
+                } else if (backoffPolicy != null) {
+                    if (backoff == null) {
+                        backoff = backoffPolicy.newBackoff();
+                    }
+                    waitNanos = Math.min(backoff.nextDelayNanos(), TimeUnit.MILLISECONDS.toNanos(lockRemaining));
+                } else {
+                    waitNanos = TimeUnit.MILLISECONDS.toNanos(Math.min(lockRemaining, RETRY_INTERVAL_MILLIS));
+                }
+                if (useTimeout) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    waitNanos = Math.min(waitNanos, remaining);
+                }
+                try {
+                    if (signal != null) {
+                        signal.await(generation, waitNanos);
+                    } else {
+                        pause(waitNanos);
+                    }
+                } catch (InterruptedException e) {
+                    if (interrupt)
+                        throw e;
+                    // 不响应中断时继续等待，返回前恢复中断标识
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (signal != null) {
+                notifier.unregister(lockKey, signal);
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
             }
         }
-        System.out.println("没有拿到锁...");
-        return false;
     }
 
     @Override
     public boolean tryLock() {
-        long lockExpireTime = System.currentTimeMillis() + lockExpires + 1;// 锁超时时间
-        String stringOfLockExpireTime = String.valueOf(lockExpireTime);
+        return acquire() == 0;
+    }
 
-        if (jedis.setnx(lockKey, stringOfLockExpireTime) == 1) { // 获取到锁
-            // 成功获取到锁, 设置相关标识
-            locked = true;
-            setExclusiveOwnerThread(Thread.currentThread());
-            return true;
-        }
-        String value = jedis.get(lockKey);
-        if (value != null && isTimeExpire(value)) { // lock is expired
-            // 假设多个线程(非单jvm)同时走到这里
-            String oldValue = jedis.getSet(lockKey, stringOfLockExpireTime); //原子操作
-            // 但是走到这里时每个线程拿到的oldValue肯定不可能一样(因为getset是原子性的)
-            // 假如拿到的oldValue依然是expired的，那么就说明拿到锁了
-            if (oldValue != null && isTimeExpire(oldValue)) {
-                //成功获取到锁, 设置相关标识
-                locked = true;
-                setExclusiveOwnerThread(Thread.currentThread());
-                return true;
-            }
+    /**
+     * 锁不存在或者已经过期时写入新的值，同时递增fencing计数器，一次往返完成。
+     * 原来的setnx + get + getSet分开执行，拿到锁和递增计数器之间会被别人插进来，token就不再单调
+     * @return 拿到锁返回0，否则返回当前持有者的锁还有多久过期(毫秒)
+     */
+    private long acquire() {
+        List<String> keys = new ArrayList<String>(2);
+        keys.add(lockKey);
+        keys.add(fencingKey);
+        List<String> args = new ArrayList<String>(2);
+        String value;
+        long token;
+        if (tokenMode) {
+            value = UUID.randomUUID().toString();
+            args.add(value);
+            args.add(String.valueOf(lockExpires));
+            token = (Long) eval(TOKEN_ACQUIRE_SCRIPT, keys, args);
         } else {
-            // TODO lock is not expired, enter next loop retrying
+            long now = currentTimeMillis();
+            long lockExpireTime = now + lockExpires + 1;// 锁超时时间
+            value = String.valueOf(lockExpireTime);
+            args.add(value);
+            args.add(String.valueOf(now));
+            args.add(String.valueOf(lockExpires + 1));
+            token = (Long) eval(ACQUIRE_SCRIPT, keys, args);
         }
-        return false;
+        if (token < 0) {
+            return -token;
+        }
+        // 成功获取到锁, 设置相关标识
+        fencingToken = token;
+        onLocked(value);
+        return 0;
+    }
 
+    /**
+     * 当前线程持有的锁的fencing token，每次拿到锁时由redis的计数器递增得到
+     * @return
+     */
+    public long getFencingToken() {
+        if (Thread.currentThread() != getExclusiveOwnerThread())
+            throw new IllegalMonitorStateException("current thread does not hold the lock");
+        return fencingToken;
     }
 
     public boolean isLocked(){
@@ -130,17 +339,70 @@ public class RedisBasedDistributedLock extends AbstractLock{
             // 而就在这瞬间, 另一个节点set了value, 这时锁是被别的线程(节点持有), 而接下来的判断
             // 是检测不出这种情况的.不过这个问题应该不会导致其它的问题出现, 因为这个方法的目的本来就
             // 不是同步控制, 它只是一种锁状态的报告.
-            String value = jedis.get(lockKey);
-            return !isTimeExpire(value);
+            if (tokenMode)
+                return get(lockKey) != null;
+            String value = get(lockKey);
+            return value != null && !isTimeExpire(value);
         }
     }
 
-    private boolean isTimeExpire(String value) {
-        return Long.parseLong(value) < System.currentTimeMillis();
+    /**
+     * 锁使用的连接：连接池或者单个连接，续期线程按它分组
+     */
+    Object connectionSource() {
+        return pool != null ? pool : jedis;
+    }
+
+    /**
+     * 执行脚本：有连接池时借一个连接，否则在共用的连接上串行执行
+     */
+    Object eval(RedisLockScript script, List<String> keys, List<String> args) {
+        if (pool == null) {
+            synchronized (jedis) {
+                return script.eval(jedis, keys, args);
+            }
+        }
+        Jedis borrowed = pool.getResource();
+        try {
+            return script.eval(borrowed, keys, args);
+        } finally {
+            borrowed.close();// 连接出错时close会把它作为坏连接还给连接池
+        }
+    }
+
+    private String get(String key) {
+        if (pool == null) {
+            synchronized (jedis) {
+                return jedis.get(key);
+            }
+        }
+        Jedis borrowed = pool.getResource();
+        try {
+            return borrowed.get(key);
+        } finally {
+            borrowed.close();
+        }
+    }
+
+    /**
+     * 生成和比较过期时间用的当前时间，设置了serverClock时是推算出的redis服务器时间
+     * @return
+     */
+    private long currentTimeMillis() {
+        RedisServerClock clock = serverClock;
+        if (clock == null) {
+            return System.currentTimeMillis();
+        }
+        if (clock.needsSync()) {
+            long sentNanos = System.nanoTime();
+            List<?> reply = (List<?>) eval(RedisServerClock.TIME_SCRIPT, Collections.<String>emptyList(), Collections.<String>emptyList());
+            clock.update(reply, sentNanos, System.nanoTime());
+        }
+        return clock.currentTimeMillis();
     }
 
-    private boolean isTimeout(long start, long timeout) {
-        return start+timeout>System.currentTimeMillis();
+    private boolean isTimeExpire(String value) {
+        return Long.parseLong(value) < currentTimeMillis();
     }
 
     private void checkInterruption() throws InterruptedException {
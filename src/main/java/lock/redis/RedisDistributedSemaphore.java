@@ -0,0 +1,126 @@
+package lock.redis;
+
+import lock.DistributedSemaphore;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 使用redis有序集合实现的分布式信号量：
+ *      1. 每个许可是有序集合里的一个成员，分数是许可的过期时间，持有者崩溃后许可到期自动回收
+ *      2. 获取许可用一个lua脚本原子完成：先清理过期的许可，剩余许可足够就一次加入n个成员，否则什么都不做。
+ *         过期时间用redis服务器的时间计算，客户端的时钟快了也不会把别人还在用的许可清理掉
+ *      3. 归还许可就是删除对应的成员
+ * 获取许可是一次原子脚本调用，不需要先拿到某个互斥锁。leaseMillis要大于持有许可的最长时间
+ */
+public class RedisDistributedSemaphore implements DistributedSemaphore {
+
+    /**
+     * KEYS[1]:有序集合 ARGV[1]:许可总数 ARGV[2]:许可有效时间 ARGV[3..]:新的许可
+     * 脚本里调用TIME后还要写入，需要replicate_commands按命令复制(redis 3.2以上)
+     */
+    private static final RedisLockScript ACQUIRE_SCRIPT = new RedisLockScript(
+            "redis.replicate_commands() " +
+            "local t = redis.call('time') " +
+            "local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000) " +
+            "redis.call('zremrangebyscore', KEYS[1], '-inf', now) " +
+            "if redis.call('zcard', KEYS[1]) + #ARGV - 2 > tonumber(ARGV[1]) then return 0 end " +
+            "local expireAt = now + tonumber(ARGV[2]) " +
+            "for i = 3, #ARGV do redis.call('zadd', KEYS[1], expireAt, ARGV[i]) end " +
+            "redis.call('pexpire', KEYS[1], ARGV[2]) " +
+            "return 1");
+
+    private static final long RETRY_INTERVAL_MILLIS = 50;// 许可不够时的重试间隔
+
+    private final RedisUtil redisUtil;
+    private final String semaphoreKey;// 有序集合的key
+    private final int maxPermits;// 许可总数
+    private final long leaseMillis;// 许可有效时间，单位毫秒
+    private final String clientId = UUID.randomUUID().toString();// 区分不同进程的许可
+    private final AtomicLong permitSequence = new AtomicLong();
+    private final ConcurrentLinkedDeque<String> heldPermits = new ConcurrentLinkedDeque<String>();// 本进程持有的许可
+
+    public RedisDistributedSemaphore(RedisUtil redisUtil, String semaphoreKey, int maxPermits, long leaseMillis) {
+        if (maxPermits <= 0) {
+            throw new IllegalArgumentException("maxPermits must greater than 0");
+        }
+        this.redisUtil = redisUtil;
+        this.semaphoreKey = semaphoreKey;
+        this.maxPermits = maxPermits;
+        this.leaseMillis = leaseMillis;
+    }
+
+    @Override
+    public void acquire(int permits) throws Exception {
+        while (!tryAcquireOnce(permits)) {
+            Thread.sleep(RETRY_INTERVAL_MILLIS);
+        }
+    }
+
+    @Override
+    public boolean tryAcquire(int permits, long time, TimeUnit unit) throws Exception {
+        if (unit == null) {
+            throw new Exception("TimeUnit can not be null");
+        }
+        long deadline = System.nanoTime() + unit.toNanos(time);
+        while (!tryAcquireOnce(permits)) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(RETRY_INTERVAL_MILLIS)));
+        }
+        return true;
+    }
+
+    @Override
+    public void release(int permits) throws Exception {
+        List<String> members = new ArrayList<String>(permits);
+        for (int i = 0; i < permits; i++) {
+            String member = heldPermits.pollFirst();
+            if (member == null) {
+                heldPermits.addAll(members);
+                throw new IllegalStateException("release more permits than acquired");
+            }
+            members.add(member);
+        }
+        Jedis jedis = redisUtil.getJedis();
+        try {
+            jedis.zrem(semaphoreKey, members.toArray(new String[members.size()]));
+        } finally {
+            jedis.close();
+        }
+    }
+
+    private boolean tryAcquireOnce(int permits) {
+        if (permits <= 0 || permits > maxPermits) {
+            throw new IllegalArgumentException("permits must between 1 and " + maxPermits);
+        }
+        List<String> args = new ArrayList<String>(permits + 2);
+        args.add(String.valueOf(maxPermits));
+        args.add(String.valueOf(leaseMillis));
+        List<String> members = new ArrayList<String>(permits);
+        for (int i = 0; i < permits; i++) {
+            members.add(clientId + ":" + permitSequence.incrementAndGet());
+        }
+        args.addAll(members);
+
+        Jedis jedis = redisUtil.getJedis();
+        try {
+            Object result = ACQUIRE_SCRIPT.eval(jedis, Collections.singletonList(semaphoreKey), args);
+            if (Long.valueOf(1).equals(result)) {
+                heldPermits.addAll(members);
+                return true;
+            }
+            return false;
+        } finally {
+            jedis.close();
+        }
+    }
+}
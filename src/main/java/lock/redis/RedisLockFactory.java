@@ -0,0 +1,41 @@
+package lock.redis;
+
+import lock.LockFactory;
+import redis.clients.jedis.JedisPool;
+
+/**
+ * 为每个key创建RedisBasedDistributedLock，redis里的key为keyPrefix + key，配合LockRegistry或者StripedLockRegistry使用：
+ *      new StripedLockRegistry<RedisBasedDistributedLock>(new RedisLockFactory(pool, "lock:", 5000), 1024)
+ */
+public class RedisLockFactory implements LockFactory<RedisBasedDistributedLock> {
+
+    private final JedisPool pool;
+    private final String keyPrefix;// redis里锁的key前缀
+    private final long lockExpires;// 锁的有效时间，单位毫秒
+
+    public RedisLockFactory(JedisPool pool, String keyPrefix, long lockExpires) {
+        this.pool = pool;
+        this.keyPrefix = keyPrefix;
+        this.lockExpires = lockExpires;
+    }
+
+    @Override
+    public RedisBasedDistributedLock newLock(String key) {
+        return new RedisBasedDistributedLock(pool, keyPrefix + key, lockExpires);
+    }
+
+    /**
+     * redis锁没有本地排队，等待的线程各自持有锁对象，回收后再创建的锁对象仍然在redis上互斥，只要没有被持有就可以回收
+     */
+    @Override
+    public boolean isIdle(RedisBasedDistributedLock lock) {
+        return !lock.locked;
+    }
+
+    /**
+     * redis锁没有注册任何监听器，回收时不需要释放
+     */
+    @Override
+    public void onEvicted(RedisBasedDistributedLock lock) {
+    }
+}
@@ -0,0 +1,189 @@
+package lock.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPubSub;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * redis锁的释放通知，一个连接池共用一个：
+ *      1. 释放锁时往 channelOf(lockKey) 发布一条消息
+ *      2. 这里用一个连接按模式订阅所有锁的频道，收到消息后唤醒本进程里等待这个key的线程，
+ *         等待的线程不再反复访问redis，同一个key不管有多少个线程在等都只占一个订阅连接
+ *      3. 消息可能丢失(订阅连接断开重连期间)，持有者崩溃时锁是过期释放的，也不会有消息，
+ *         所以等待的线程还要设置一个有上限的超时时间，超时后自己再试一次
+ */
+public class RedisLockNotifier {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedisLockNotifier.class);
+
+    static final String CHANNEL_PREFIX = "distributelock:released:";// 释放通知的频道前缀
+    private static final long RESUBSCRIBE_INTERVAL_MILLIS = 1000;// 订阅连接断开后的重连间隔
+
+    private static final Map<JedisPool, RedisLockNotifier> instances = new HashMap<JedisPool, RedisLockNotifier>();
+
+    private final JedisPool pool;
+    private final Map<String, Signal> signals = new ConcurrentHashMap<String, Signal>();// 有线程在等待的key
+    private boolean started;
+
+    /**
+     * 取得连接池对应的通知器，同一个连接池只创建一个订阅连接
+     * @param pool
+     * @return
+     */
+    public static RedisLockNotifier getInstance(JedisPool pool) {
+        synchronized (instances) {
+            RedisLockNotifier notifier = instances.get(pool);
+            if (notifier == null) {
+                notifier = new RedisLockNotifier(pool);
+                instances.put(pool, notifier);
+            }
+            return notifier;
+        }
+    }
+
+    /**
+     * 使用RedisUtil连接池的通知器
+     * @return
+     */
+    public static RedisLockNotifier getInstance() {
+        return getInstance(RedisUtil.getInstance().getPool());
+    }
+
+    private RedisLockNotifier(JedisPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * 释放锁后发布通知的频道
+     * @param lockKey
+     * @return
+     */
+    static String channelOf(String lockKey) {
+        return CHANNEL_PREFIX + lockKey;
+    }
+
+    /**
+     * 开始等待某个key，必须在尝试获取锁之前注册，否则在获取失败和开始等待之间发布的通知会被错过
+     * @param lockKey
+     * @return
+     */
+    Signal register(String lockKey) {
+        Signal signal;
+        synchronized (signals) {
+            signal = signals.get(lockKey);
+            if (signal == null) {
+                signal = new Signal();
+                signals.put(lockKey, signal);
+            }
+            signal.waiters++;
+        }
+        ensureSubscribed();
+        return signal;
+    }
+
+    /**
+     * 不再等待某个key，最后一个等待的线程离开时移除
+     * @param lockKey
+     * @param signal
+     */
+    void unregister(String lockKey, Signal signal) {
+        synchronized (signals) {
+            if (--signal.waiters == 0) {
+                signals.remove(lockKey);
+            }
+        }
+    }
+
+    private synchronized void ensureSubscribed() {
+        if (started) {
+            return;
+        }
+        started = true;
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                subscribeLoop();
+            }
+        }, "redis-lock-notifier");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void subscribeLoop() {
+        JedisPubSub listener = new JedisPubSub() {
+            @Override
+            public void onPMessage(String pattern, String channel, String message) {
+                Signal signal = signals.get(channel.substring(CHANNEL_PREFIX.length()));
+                if (signal != null) {
+                    signal.signalAll();
+                }
+            }
+
+            @Override
+            public void onPSubscribe(String pattern, int subscribedChannels) {
+                // 重新订阅之前的通知可能已经丢了，让所有等待的线程都重试一次
+                for (Signal signal : signals.values()) {
+                    signal.signalAll();
+                }
+            }
+        };
+        while (true) {
+            Jedis jedis = null;
+            try {
+                jedis = pool.getResource();
+                jedis.psubscribe(listener, CHANNEL_PREFIX + "*");
+            } catch (Exception e) {
+                logger.error("lock release subscription broken,resubscribe later", e);
+            } finally {
+                if (jedis != null) {
+                    jedis.close();// 订阅异常断开时close会把连接作为坏连接还给连接池
+                }
+            }
+            try {
+                Thread.sleep(RESUBSCRIBE_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 某个key上等待的线程共用的信号，每次通知generation加1
+     */
+    static class Signal {
+        private int waiters;// 只在持有signals的锁时读写
+        private long generation;
+
+        synchronized long generation() {
+            return generation;
+        }
+
+        synchronized void signalAll() {
+            generation++;
+            notifyAll();
+        }
+
+        /**
+         * 等待generation变化或者超时
+         * @param observed 尝试获取锁之前读到的generation
+         * @param nanos
+         * @throws InterruptedException
+         */
+        synchronized void await(long observed, long nanos) throws InterruptedException {
+            long deadline = System.nanoTime() + nanos;
+            while (generation == observed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+    }
+}
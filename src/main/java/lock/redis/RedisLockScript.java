@@ -0,0 +1,56 @@
+package lock.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * 锁使用的lua脚本：SHA1在本地算好，平时只用EVALSHA发送40个字符的摘要，不用每次都把脚本全文发给redis。
+ * redis重启或者执行过SCRIPT FLUSH后会返回NOSCRIPT，这时用EVAL执行一次，脚本同时会被redis缓存下来
+ */
+public class RedisLockScript {
+
+    private final String script;
+    private final String sha;
+
+    public RedisLockScript(String script) {
+        this.script = script;
+        this.sha = sha1Hex(script);
+    }
+
+    public Object eval(Jedis jedis, List<String> keys, List<String> args) {
+        try {
+            return jedis.evalsha(sha, keys, args);
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            return jedis.eval(script, keys, args);
+        }
+    }
+
+    public String getScript() {
+        return script;
+    }
+
+    public String getSha() {
+        return sha;
+    }
+
+    private static String sha1Hex(String script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script.getBytes(Charset.forName("UTF-8")));
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
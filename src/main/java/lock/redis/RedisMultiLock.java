@@ -0,0 +1,129 @@
+package lock.redis;
+
+import lock.BackoffPolicy;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同时锁住多个key的redis分布式锁：
+ *      1. key按字典序排序后交给一个lua脚本，所有key都没有被锁住时一次全部设置为本次的随机值并带上过期时间，
+ *         否则什么都不做，一次往返就能判断能否拿到全部的锁，不会出现只锁住一部分的情况
+ *      2. 释放时同样用一个lua脚本，只删除值还是本次随机值的key，不会误删别人的锁
+ * 这些key的值是随机字符串，不能和RedisBasedDistributedLock的时间戳格式混用
+ */
+public class RedisMultiLock extends AbstractLock {
+
+    /**
+     * KEYS:全部key ARGV[1]:本次的随机值 ARGV[2]:锁的有效时间(毫秒)
+     */
+    private static final RedisLockScript LOCK_SCRIPT = new RedisLockScript(
+            "for i = 1, #KEYS do if redis.call('exists', KEYS[i]) == 1 then return 0 end end " +
+            "for i = 1, #KEYS do redis.call('set', KEYS[i], ARGV[1], 'PX', ARGV[2]) end " +
+            "return 1");
+
+    /**
+     * KEYS:全部key ARGV[1]:本次的随机值
+     */
+    private static final RedisLockScript UNLOCK_SCRIPT = new RedisLockScript(
+            "local count = 0 " +
+            "for i = 1, #KEYS do " +
+            "  if redis.call('get', KEYS[i]) == ARGV[1] then redis.call('del', KEYS[i]) count = count + 1 end " +
+            "end " +
+            "return count");
+
+    private static final long RETRY_INTERVAL_MILLIS = 10;// 没拿到锁时的重试间隔
+
+    private Jedis jedis;
+    //锁的名字，按字典序排好
+    protected List<String> lockKeys;
+    //锁的有效时间，单位毫秒
+    protected long lockExpires;
+    //本次持有锁时写入的随机值
+    private String lockValue;
+    //重试间隔策略，为null表示每RETRY_INTERVAL_MILLIS重试一次
+    private BackoffPolicy backoffPolicy;
+
+    public RedisMultiLock(Jedis jedis, Collection<String> lockKeys, long lockExpires) {
+        if (lockKeys == null || lockKeys.isEmpty()) {
+            throw new IllegalArgumentException("lockKeys can not be empty");
+        }
+        this.jedis = jedis;
+        this.lockKeys = Collections.unmodifiableList(new ArrayList<String>(new TreeSet<String>(lockKeys)));
+        this.lockExpires = lockExpires;
+    }
+
+    public void setBackoffPolicy(BackoffPolicy backoffPolicy) {
+        this.backoffPolicy = backoffPolicy;
+    }
+
+    @Override
+    protected void unlock0() {
+        UNLOCK_SCRIPT.eval(jedis, lockKeys, Collections.singletonList(lockValue));
+        lockValue = null;
+        locked = false;
+    }
+
+    @Override
+    protected boolean lock(boolean useTimeout, long time, TimeUnit unit, boolean interrupt) throws InterruptedException {
+        if (interrupt)
+            checkInterruption();
+
+        long deadline = useTimeout ? System.nanoTime() + unit.toNanos(time) : 0;
+        BackoffPolicy.Backoff backoff = null;
+        while (true) {
+            if (interrupt)
+                checkInterruption();
+            if (tryLock()) {
+                if (backoff != null) {
+                    backoff.onAcquired();
+                }
+                return true;
+            }
+            long waitNanos;
+            if (backoffPolicy != null) {
+                if (backoff == null) {
+                    backoff = backoffPolicy.newBackoff();
+                }
+                waitNanos = backoff.nextDelayNanos();
+            } else {
+                waitNanos = TimeUnit.MILLISECONDS.toNanos(RETRY_INTERVAL_MILLIS);
+            }
+            if (useTimeout) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                waitNanos = Math.min(waitNanos, remaining);
+            }
+            pause(waitNanos);
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        String value = UUID.randomUUID().toString();
+        List<String> args = new ArrayList<String>(2);
+        args.add(value);
+        args.add(String.valueOf(lockExpires));
+        if (Long.valueOf(1).equals(LOCK_SCRIPT.eval(jedis, lockKeys, args))) {
+            // 成功获取到锁, 设置相关标识
+            lockValue = value;
+            locked = true;
+            setExclusiveOwnerThread(Thread.currentThread());
+            return true;
+        }
+        return false;
+    }
+
+    private void checkInterruption() throws InterruptedException {
+        if (Thread.currentThread().isInterrupted())
+            throw new InterruptedException();
+    }
+}
@@ -0,0 +1,293 @@
+package lock.redis;
+
+import lock.BackoffPolicy;
+import lock.DecorrelatedJitterBackoffPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在多个相互独立的redis master上加锁(Redlock)：
+ *      1. 同时向所有节点发送SET key token NX PX ttl，过半数节点成功就算拿到锁，
+ *         耗时取决于过半数里最慢的那个节点，而不是所有节点的耗时之和
+ *      2. 锁的有效时间要扣掉加锁花掉的时间和时钟漂移(ttl * 1% + 2毫秒)，扣完不剩就算失败
+ *      3. 释放时同时向所有节点发送比较并删除，没有回应的节点上的锁由ttl兜底；
+ *         加锁失败时的释放只发出去不等回应，不拖慢下一次重试
+ * 任何一个节点宕机都不会丢锁，过半数节点可用就能继续加锁
+ */
+public class RedisRedLock extends AbstractLock {
+
+    private static final Logger logger = LoggerFactory.getLogger(RedisRedLock.class);
+
+    private static final double CLOCK_DRIFT_FACTOR = 0.01;// 时钟漂移占ttl的比例
+    private static final long CLOCK_DRIFT_MILLIS = 2;// 额外的时钟漂移，覆盖ttl很短时的误差
+
+    /**
+     * KEYS[1]:锁 ARGV[1]:本次的token
+     */
+    private static final RedisLockScript UNLOCK_SCRIPT = new RedisLockScript(
+            "if redis.call('get', KEYS[1]) == ARGV[1] then return redis.call('del', KEYS[1]) end " +
+            "return 0");
+
+    // 并行访问各个节点的线程，所有锁共用
+    private static final ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "redis-redlock");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final List<JedisPool> pools;
+    private final int quorum;
+    //锁的名字
+    protected String lockKey;
+    //锁的有效时间，单位毫秒
+    protected long lockExpires;
+    //本次持有锁时写入的token
+    private volatile String lockValue;
+    //锁在本地认为有效的截止时间(System.nanoTime)
+    private volatile long validUntilNanos;
+    //没拿到锁时的重试间隔，随机化避免多个客户端同时重试又一起失败
+    private BackoffPolicy backoffPolicy = new DecorrelatedJitterBackoffPolicy(10, 200, TimeUnit.MILLISECONDS);
+
+    /**
+     * @param pools 相互独立的redis节点，建议是奇数个
+     * @param lockKey
+     * @param lockExpires
+     */
+    public RedisRedLock(List<JedisPool> pools, String lockKey, long lockExpires) {
+        if (pools == null || pools.isEmpty()) {
+            throw new IllegalArgumentException("pools can not be empty");
+        }
+        this.pools = new ArrayList<JedisPool>(pools);
+        this.quorum = quorumOf(pools.size());
+        this.lockKey = lockKey;
+        this.lockExpires = lockExpires;
+    }
+
+    public void setBackoffPolicy(BackoffPolicy backoffPolicy) {
+        this.backoffPolicy = backoffPolicy;
+    }
+
+    /**
+     * 多少个节点加锁成功才算拿到锁
+     * @param nodes 节点数
+     * @return 过半数
+     */
+    static int quorumOf(int nodes) {
+        return nodes / 2 + 1;
+    }
+
+    /**
+     * 锁的有效时间里要扣掉的时钟漂移
+     * @param lockExpires 锁的有效时间，单位毫秒
+     * @return 毫秒
+     */
+    static long driftMillis(long lockExpires) {
+        return (long) (lockExpires * CLOCK_DRIFT_FACTOR) + CLOCK_DRIFT_MILLIS;
+    }
+
+    /**
+     * 加锁花掉elapsedMillis之后，锁在本地还能认为有效的时间
+     * @param lockExpires 锁的有效时间，单位毫秒
+     * @param elapsedMillis 加锁花掉的时间
+     * @return 毫秒，小于等于0表示已经不能算拿到锁
+     */
+    static long validityMillis(long lockExpires, long elapsedMillis) {
+        return lockExpires - elapsedMillis - driftMillis(lockExpires);
+    }
+
+    /**
+     * 锁还剩多长时间有效，已经扣除了时钟漂移，临界区要在这个时间内完成
+     * @return 毫秒，没有持有锁返回0
+     */
+    public long getRemainingValidityMillis() {
+        if (!locked) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(validUntilNanos - System.nanoTime()));
+    }
+
+    @Override
+    protected void unlock0() {
+        String value = lockValue;
+        lockValue = null;
+        locked = false;
+        if (value != null) {
+            awaitAll(releaseAll(value));
+        }
+    }
+
+    @Override
+    protected boolean lock(boolean useTimeout, long time, TimeUnit unit, boolean interrupt) throws InterruptedException {
+        if (interrupt)
+            checkInterruption();
+
+        long deadline = useTimeout ? System.nanoTime() + unit.toNanos(time) : 0;
+        BackoffPolicy.Backoff backoff = backoffPolicy.newBackoff();
+        boolean interrupted = false;
+        try {
+            while (true) {
+                if (interrupt)
+                    checkInterruption();
+                if (tryLock()) {
+                    backoff.onAcquired();
+                    return true;
+                }
+                long waitNanos = backoff.nextDelayNanos();
+                if (useTimeout) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    waitNanos = Math.min(waitNanos, remaining);
+                }
+                try {
+                    pause(waitNanos);
+                } catch (InterruptedException e) {
+                    if (interrupt)
+                        throw e;
+                    // 不响应中断时继续等待，返回前恢复中断标识
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public boolean tryLock() {
+        final String value = UUID.randomUUID().toString();
+        long start = System.nanoTime();
+        long windowNanos = TimeUnit.MILLISECONDS.toNanos(validityMillis(lockExpires, 0));
+
+        CompletionService<Boolean> completion = new ExecutorCompletionService<Boolean>(executor);
+        for (final JedisPool pool : pools) {
+            completion.submit(new Callable<Boolean>() {
+                public Boolean call() {
+                    return acquireOne(pool, value);
+                }
+            });
+        }
+
+        // 过半数成功就不再等其它节点，过半数已经不可能时也不再等
+        int granted = 0;
+        int failed = 0;
+        try {
+            while (granted < quorum && failed <= pools.size() - quorum) {
+                long remaining = windowNanos - (System.nanoTime() - start);
+                if (remaining <= 0) {
+                    break;
+                }
+                Future<Boolean> result = completion.poll(remaining, TimeUnit.NANOSECONDS);
+                if (result == null) {
+                    break;
+                }
+                if (Boolean.TRUE.equals(result.get())) {
+                    granted++;
+                } else {
+                    failed++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // acquireOne不会抛异常
+            logger.error("redlock acquire error", e);
+        }
+
+        long validUntil = start + windowNanos;
+        if (granted >= quorum && validUntil - System.nanoTime() > 0) {
+            // 成功获取到锁, 设置相关标识
+            lockValue = value;
+            validUntilNanos = validUntil;
+            locked = true;
+            setExclusiveOwnerThread(Thread.currentThread());
+            return true;
+        }
+        // 没拿到锁，已经加上的(包括还没回应的)节点都要释放，不等回应，没释放掉的由ttl兜底
+        releaseAll(value);
+        return false;
+    }
+
+    private Boolean acquireOne(JedisPool pool, String value) {
+        Jedis jedis = null;
+        try {
+            jedis = pool.getResource();
+            return "OK".equals(jedis.set(lockKey, value, "NX", "PX", lockExpires));
+        } catch (Exception e) {
+            logger.warn("redlock node unavailable,lockKey:{}", lockKey, e);
+            return false;
+        } finally {
+            if (jedis != null) {
+                jedis.close();
+            }
+        }
+    }
+
+    /**
+     * 同时在所有节点上比较并删除，不等待结果
+     * @return 各个节点的释放结果
+     */
+    private List<Future<?>> releaseAll(final String value) {
+        List<Future<?>> futures = new ArrayList<Future<?>>(pools.size());
+        for (final JedisPool pool : pools) {
+            futures.add(executor.submit(new Runnable() {
+                public void run() {
+                    Jedis jedis = null;
+                    try {
+                        jedis = pool.getResource();
+                        UNLOCK_SCRIPT.eval(jedis, Collections.singletonList(lockKey), Collections.singletonList(value));
+                    } catch (Exception e) {
+                        logger.warn("redlock release failed,lockKey:{}", lockKey, e);
+                    } finally {
+                        if (jedis != null) {
+                            jedis.close();
+                        }
+                    }
+                }
+            }));
+        }
+        return futures;
+    }
+
+    /**
+     * 等所有节点回应释放，或者超过锁的有效时间
+     */
+    private void awaitAll(List<Future<?>> futures) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lockExpires);
+        try {
+            for (Future<?> future : futures) {
+                future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            // 没有回应的节点上的锁会在ttl后过期
+            logger.warn("redlock release not confirmed,lockKey:{}", lockKey);
+        }
+    }
+
+    private void checkInterruption() throws InterruptedException {
+        if (Thread.currentThread().isInterrupted())
+            throw new InterruptedException();
+    }
+}
@@ -0,0 +1,63 @@
+package lock.redis;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 以redis服务器时间为准的时钟，用来生成和比较默认模式下锁的值(过期时间)：
+ *      1. 每隔resyncInterval用TIME取一次服务器时间，扣掉一半往返时间作为基准
+ *      2. 两次同步之间用System.nanoTime()推算，本机的墙上时钟被调整也不受影响
+ * 所有客户端都按服务器时间写入和比较，误差只有同步时的半个往返时间加上两次同步之间的时钟漂移，
+ * 不再需要给ttl加上好几秒来兜底各台机器之间的时钟偏差。同一个redis上的锁可以共用一个实例
+ */
+public class RedisServerClock {
+
+    static final RedisLockScript TIME_SCRIPT = new RedisLockScript("return redis.call('time')");
+
+    private static final long DEFAULT_RESYNC_INTERVAL_MILLIS = 30 * 1000;
+
+    private final long resyncIntervalNanos;
+    private volatile long baseServerMillis;// 上次同步得到的服务器时间
+    private volatile long baseNanos;// 上次同步时本机的nanoTime
+    private volatile boolean synced;
+
+    public RedisServerClock() {
+        this(DEFAULT_RESYNC_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public RedisServerClock(long resyncInterval, TimeUnit unit) {
+        this.resyncIntervalNanos = unit.toNanos(resyncInterval);
+    }
+
+    /**
+     * 是否需要重新取服务器时间
+     * @return
+     */
+    boolean needsSync() {
+        return !synced || System.nanoTime() - baseNanos > resyncIntervalNanos;
+    }
+
+    /**
+     * 用TIME的返回值更新基准
+     * @param reply TIME_SCRIPT的返回值：秒，微秒
+     * @param sentNanos 发出请求时的nanoTime
+     * @param receivedNanos 收到回应时的nanoTime
+     */
+    synchronized void update(List<?> reply, long sentNanos, long receivedNanos) {
+        long seconds = Long.parseLong(String.valueOf(reply.get(0)));
+        long micros = Long.parseLong(String.valueOf(reply.get(1)));
+        long rttNanos = receivedNanos - sentNanos;
+        // 服务器大约在往返的中间时刻取的时间
+        baseServerMillis = seconds * 1000 + micros / 1000 + TimeUnit.NANOSECONDS.toMillis(rttNanos / 2);
+        baseNanos = receivedNanos;
+        synced = true;
+    }
+
+    /**
+     * 推算出的当前服务器时间
+     * @return 毫秒
+     */
+    synchronized long currentTimeMillis() {
+        return baseServerMillis + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - baseNanos);
+    }
+}
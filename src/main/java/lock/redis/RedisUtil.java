@@ -55,6 +55,15 @@ public class RedisUtil {
 		return ru;
 	}
 
+	/**
+	 * 取得连接池，给需要自己管理连接的组件(例如锁的续期线程)使用
+	 *
+	 * @return
+	 */
+	public JedisPool getPool() {
+		return pool;
+	}
+
 	/**
 	 * <p>
 	 * 通过key获取储存在redis中的value
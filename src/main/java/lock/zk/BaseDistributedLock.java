@@ -6,9 +6,8 @@ import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 
@@ -22,6 +21,7 @@ import java.util.concurrent.TimeUnit;
             4. 步骤3中获取小于自己的节点不存在 && 最小节点与步骤2中创建的相同，说明当前客户端顺序号最小，获得锁，结束。
             5. 客户端监视(watch)相对自己次小的有序临时节点状态
             6. 如果监视的次小节点状态发生变化，则跳转到步骤3，继续后续操作，直到退出锁竞争。
+         锁可重入：每个线程记录自己创建的节点和重入次数，嵌套获取只增加计数，最外层释放时才删除节点。
  */
 public abstract class BaseDistributedLock implements DistributeLock{
     private static Logger logger = LoggerFactory.getLogger(BaseDistributedLock.class);
@@ -29,9 +29,21 @@ public abstract class BaseDistributedLock implements DistributeLock{
     private ZooKeeper zooKeeper;
     private String rootPath;  //根目录
     private String lockPre;  //锁前缀
-    private String currentLockPath;  //用于保存某个客户端在locker下面创建成功的顺序节点，用于后续相关操作使用（如判断）
+    private final ConcurrentMap<Thread, LockData> threadData = new ConcurrentHashMap<Thread, LockData>();  //每个线程持有的顺序节点和重入次数
     private static int MAX_RETRY_COUNT = 10;// 最大重试次数;
 
+    /**
+     * 某个线程持有的锁：在locker下面创建成功的顺序节点，以及重入次数
+     */
+    private static class LockData {
+        final String lockPath;
+        int lockCount = 1;  //只有持有线程会读写
+
+        LockData(String lockPath) {
+            this.lockPath = lockPath;
+        }
+    }
+
     /**
      * 初始化根目录
      */
@@ -46,44 +58,20 @@ public abstract class BaseDistributedLock implements DistributeLock{
     }
 
     /**
-     * 获取锁的排序号:/lock_node/lock-1和/lock_node/lock-2；获取1，2，...
-     * @param str
-     * @param lockName
-     */
-    private String getLockNodeNumber(String str,String lockName){
-        int index =str.indexOf(lockName);
-        if (index>=0){
-            index +=lockName.length();
-            return index<str.length()?str.substring(index):"";
-        }
-        return  str;
-    }
-
-    /**
-     * 获取锁的排序列表
+     * 获取锁的排序列表，顺序号只解析一次
      * @return
      * @throws Exception
      */
-    private List<String> getSortedChildren() throws Exception {
-        List<String> children = zooKeeper.getChildren(rootPath, false);
-        if (children!=null || !children.isEmpty()){
-            Collections.sort(children, new Comparator<String>() {
-                @Override
-                public int compare(String o1, String o2) {
-                    return getLockNodeNumber(o1,lockPre).compareTo(getLockNodeNumber(o2,lockPre));
-                }
-            });
-        }
-        logger.info("sort childRen:{}", children);
-        return children;
+    private SortedChildren getSortedChildren() throws Exception {
+        return SortedChildren.of(zooKeeper.getChildren(rootPath, false));
     }
 
     /**
      *  删除锁的节点
      */
-    private void deleteLockNode(){
+    private void deleteLockNode(String lockPath){
         try {
-            zooKeeper.delete(currentLockPath,-1);
+            zooKeeper.delete(lockPath,-1);
         } catch (Exception e) {
             logger.error("unLock error", e);
         }
@@ -94,20 +82,21 @@ public abstract class BaseDistributedLock implements DistributeLock{
      * 并且稍后重试直到获取到锁或者超时
      * @param startMillis
      * @param millisToWait
+     * @param lockPath 本次创建的顺序节点
      * @return
      * @throws Exception
      */
-    private boolean waitToLock(long startMillis, Long millisToWait) throws Exception {
+    private boolean waitToLock(long startMillis, Long millisToWait, String lockPath) throws Exception {
         boolean haveTheLock = false;
         boolean doDelete = false;
         try {
             while(!haveTheLock){
                 logger.info("get Lock Begin");
                 // 该方法实现获取locker节点下的所有顺序节点，并且从小到大排序,
-                List<String> children = getSortedChildren();
-                String sequenceNodeName = currentLockPath.substring(rootPath.length() + 1);
+                SortedChildren children = getSortedChildren();
+                String sequenceNodeName = lockPath.substring(rootPath.length() + 1);
                 // 计算刚才客户端创建的顺序节点在locker的所有子节点中排序位置，如果是排序为0，则表示获取到了锁
-                int ourIndex = children.indexOf(sequenceNodeName);
+                int ourIndex = children.indexOfNode(sequenceNodeName);
 
                 /*
 				 * 如果在getSortedChildren中没有找到之前创建的[临时]顺序节点，这表示可能由于网络闪断而导致
@@ -127,35 +116,42 @@ public abstract class BaseDistributedLock implements DistributeLock{
                 String pathToWatch = isGetTheLock ? null : children.get(ourIndex - 1);
 
                 if (isGetTheLock) {
-                    logger.info("get the lock,currentLockPath:{}", currentLockPath);
+                    logger.info("get the lock,lockPath:{}", lockPath);
                     haveTheLock = true;
                 }else {
                     // 如果次小的节点被删除了，则表示当前客户端的节点应该是最小的了，所以使用CountDownLatch来实现等待
                     String previousSequencePath = rootPath.concat("/").concat(pathToWatch);
                     final CountDownLatch latch = new CountDownLatch(1);
-                    final Watcher previousListener = new Watcher() {
-                        @Override
-                        public void process(WatchedEvent watchedEvent) {
-                            if (watchedEvent.getType() == Event.EventType.NodeDeleted) {
-                                latch.countDown();
-                            }
+                    final LockWatchDispatcher.Listener previousListener = new LockWatchDispatcher.Listener() {
+                        public void nodeDeleted(String path) {
+                            latch.countDown();
                         }
-                    };
 
-                    // 如果节点不存在会出现异常
-                    zooKeeper.exists(previousSequencePath, previousListener);
-                    // 如果有超时时间，刚到超时时间就返回
-                    if (millisToWait != null) {
-                        millisToWait -= (System.currentTimeMillis() - startMillis);
-                        startMillis = System.currentTimeMillis();
-                        if (millisToWait <= 0) {
-                            doDelete = true; // timed out - delete our node
-                            break;
+                        public void watchFailed(String path, KeeperException.Code code) {
+                            // 回到循环开头重新取子节点列表，连接有问题时那里会抛出异常
+                            latch.countDown();
                         }
+                    };
+
+                    // 同一个会话共用一个分发器，节点已经不存在时也会马上通知
+                    LockWatchDispatcher watchDispatcher = LockWatchDispatcher.getInstance(zooKeeper);
+                    watchDispatcher.watchDeletion(previousSequencePath, previousListener);
+                    try {
+                        // 如果有超时时间，刚到超时时间就返回
+                        if (millisToWait != null) {
+                            millisToWait -= (System.currentTimeMillis() - startMillis);
+                            startMillis = System.currentTimeMillis();
+                            if (millisToWait <= 0) {
+                                doDelete = true; // timed out - delete our node
+                                break;
+                            }
 
-                        latch.await(millisToWait, TimeUnit.MICROSECONDS);
-                    } else {
-                        latch.await();
+                            latch.await(millisToWait, TimeUnit.MILLISECONDS);
+                        } else {
+                            latch.await();
+                        }
+                    } finally {
+                        watchDispatcher.cancel(previousSequencePath, previousListener);
                     }
                 }
             }
@@ -167,7 +163,7 @@ public abstract class BaseDistributedLock implements DistributeLock{
         }finally {
             // 如果需要删除节点
             if (doDelete) {
-                deleteLockNode();
+                deleteLockNode(lockPath);
             }
         }
         logger.info("get Lock end,haveTheLock=" + haveTheLock);
@@ -190,13 +186,21 @@ public abstract class BaseDistributedLock implements DistributeLock{
     }
 
     /**
-     * 尝试获取锁，如果不加超时时间，阻塞等待。否则，就是加了超时的阻塞等待
+     * 尝试获取锁，如果不加超时时间，阻塞等待。否则，就是加了超时的阻塞等待。
+     * 当前线程已经持有锁时只增加重入次数，不访问zookeeper
      * @param time
      * @param unit
      * @return
      * @throws Exception
      */
     protected Boolean attemptLock(long time, TimeUnit unit) throws Exception {
+        Thread currentThread = Thread.currentThread();
+        LockData lockData = threadData.get(currentThread);
+        if (lockData != null) {
+            lockData.lockCount++;
+            return true;
+        }
+
         final long startMillis = System.currentTimeMillis();
         final Long millisToWait = (unit != null) ? unit.toMillis(time) : null;
 
@@ -206,8 +210,11 @@ public abstract class BaseDistributedLock implements DistributeLock{
         while(!isDone){
             isDone = true;
             try {
-                currentLockPath = createLockNode(rootPath.concat("/").concat(lockPre));
-                hasTheLock = waitToLock(startMillis, millisToWait);
+                String lockPath = createLockNode(rootPath.concat("/").concat(lockPre));
+                hasTheLock = waitToLock(startMillis, millisToWait, lockPath);
+                if (hasTheLock) {
+                    threadData.put(currentThread, new LockData(lockPath));
+                }
 
             } catch (Exception e) {
                 if (retryCount++ < MAX_RETRY_COUNT) {
@@ -220,4 +227,23 @@ public abstract class BaseDistributedLock implements DistributeLock{
 
         return hasTheLock;
     }
+
+    /**
+     * 释放当前线程持有的锁，重入的释放只减少计数，计数归零时才删除节点
+     */
+    protected void releaseLock() {
+        Thread currentThread = Thread.currentThread();
+        LockData lockData = threadData.get(currentThread);
+        if (lockData == null) {
+            throw new IllegalMonitorStateException("current thread does not hold the lock");
+        }
+        if (--lockData.lockCount > 0) {
+            return;
+        }
+        try {
+            deleteLockNode(lockData.lockPath);
+        } finally {
+            threadData.remove(currentThread);
+        }
+    }
 }
@@ -0,0 +1,96 @@
+package lock.zk;
+
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 会话状态的默认watcher，创建ZooKeeper时传进去，把连接事件转换成锁关心的几种状态：
+ *      CONNECTED   第一次连上
+ *      SUSPENDED   连接断开，会话可能还在，临时节点也可能还在，持有锁的一方应该暂停写操作
+ *      RECONNECTED 会话没有过期就重新连上了，临时节点还在
+ *      LOST        会话过期，这个会话创建的临时节点都已经被删除，这个ZooKeeper对象也不能再用了
+ * 监听器在zookeeper的事件线程里被调用，不能在里面阻塞
+ */
+public class ConnectionStateWatcher implements Watcher {
+
+    private static Logger logger = LoggerFactory.getLogger(ConnectionStateWatcher.class);
+
+    public enum ConnectionState {
+        CONNECTED, SUSPENDED, RECONNECTED, LOST
+    }
+
+    public interface Listener {
+        void stateChanged(ConnectionState state);
+    }
+
+    private final Watcher delegate;// 原来的默认watcher，可以为null
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile ConnectionState state;
+
+    public ConnectionStateWatcher() {
+        this(null);
+    }
+
+    /**
+     * @param delegate 所有事件都会再转给它，可以为null
+     */
+    public ConnectionStateWatcher(Watcher delegate) {
+        this.delegate = delegate;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * 最近一次的连接状态，还没有连上时返回null
+     * @return
+     */
+    public ConnectionState getState() {
+        return state;
+    }
+
+    @Override
+    public void process(WatchedEvent event) {
+        if (event.getType() == Event.EventType.None) {
+            ConnectionState newState = toConnectionState(event.getState());
+            if (newState != null && newState != state) {
+                logger.info("zookeeper connection state changed:{}", newState);
+                state = newState;
+                for (Listener listener : listeners) {
+                    try {
+                        listener.stateChanged(newState);
+                    } catch (Exception e) {
+                        logger.error("connection state listener error", e);
+                    }
+                }
+            }
+        }
+        if (delegate != null) {
+            delegate.process(event);
+        }
+    }
+
+    private ConnectionState toConnectionState(Event.KeeperState keeperState) {
+        switch (keeperState) {
+            case SyncConnected:
+            case ConnectedReadOnly:
+                return state == null ? ConnectionState.CONNECTED : ConnectionState.RECONNECTED;
+            case Disconnected:
+                return ConnectionState.SUSPENDED;
+            case Expired:
+                return ConnectionState.LOST;
+            default:
+                return null;
+        }
+    }
+}
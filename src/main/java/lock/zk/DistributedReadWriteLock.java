@@ -0,0 +1,175 @@
+package lock.zk;
+
+import lock.DistributeLock;
+import org.apache.zookeeper.ZooKeeper;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 使用zookeeper实现的分布式读写锁，读节点和写节点都创建在同一个rootPath下，按顺序号统一排序：
+ *      1. 读锁创建前缀为read-的临时顺序节点，只要前面没有写节点就拿到锁，否则监视前面最近的一个写节点，
+ *         所以读锁之间不会互相等待
+ *      2. 写锁创建前缀为write-的临时顺序节点，只有自己是最小的节点才拿到锁，否则监视比自己次小的节点
+ * 读锁和写锁都可重入，持有写锁的线程不能再获取读锁(读节点排在自己的写节点后面，会死锁)
+ */
+public class DistributedReadWriteLock {
+
+    private static final String READ_LOCK_PRE = "read-";// 读节点前缀
+    private static final String WRITE_LOCK_PRE = "write-";// 写节点前缀
+
+    private final ReadLock readLock;
+    private final WriteLock writeLock;
+
+    public DistributedReadWriteLock(ZooKeeper zooKeeper, String rootPath) {
+        this.readLock = new ReadLock(zooKeeper, rootPath);
+        this.writeLock = new WriteLock(zooKeeper, rootPath);
+    }
+
+    public DistributeLock readLock() {
+        return readLock;
+    }
+
+    public DistributeLock writeLock() {
+        return writeLock;
+    }
+
+    private static boolean isWriteNode(String nodeName) {
+        return nodeName.startsWith(WRITE_LOCK_PRE);
+    }
+
+    /**
+     * 写锁：和互斥锁一样等待比自己次小的节点，不管它是读节点还是写节点
+     */
+    public static class WriteLock extends ZookeeperDistributeLock {
+
+        WriteLock(ZooKeeper zooKeeper, String rootPath) {
+            super(zooKeeper, rootPath, WRITE_LOCK_PRE);
+        }
+    }
+
+    /**
+     * 读锁：本进程的多个线程可以同时持有，每个线程有自己的读节点和重入次数
+     */
+    public static class ReadLock extends ZookeeperDistributeLock {
+
+        private final ConcurrentMap<Thread, ReadHold> holds = new ConcurrentHashMap<Thread, ReadHold>();
+
+        ReadLock(ZooKeeper zooKeeper, String rootPath) {
+            super(zooKeeper, rootPath, READ_LOCK_PRE);
+        }
+
+        /**
+         * 某个线程持有的读节点和重入次数
+         */
+        private static class ReadHold {
+            final String lockPath;
+            int holdCount = 1;// 只有持有线程会读写
+
+            ReadHold(String lockPath) {
+                this.lockPath = lockPath;
+            }
+        }
+
+        /**
+         * 只等待前面最近的写节点，前面没有写节点就拿到锁
+         */
+        @Override
+        protected String getNodeToWatch(List<String> sortedChildren, int ourIndex) {
+            for (int i = ourIndex - 1; i >= 0; i--) {
+                if (isWriteNode(sortedChildren.get(i))) {
+                    return sortedChildren.get(i);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean tryLock() throws Exception {
+            // 0表示只判断一次，不等待
+            return acquireRead(0, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void lock() throws Exception {
+            // -1,null表示阻塞等待，不设置超时时间
+            acquireRead(-1, null);
+        }
+
+        @Override
+        public boolean lock(long time, TimeUnit unit) throws Exception {
+            if (time <= 0) {
+                throw new Exception("Lock wait for time must greater than 0");
+            }
+            if (unit == null) {
+                throw new Exception("TimeUnit can not be null");
+            }
+            return acquireRead(time, unit);
+        }
+
+        private boolean acquireRead(long time, TimeUnit unit) throws Exception {
+            Thread currentThread = Thread.currentThread();
+            ReadHold hold = holds.get(currentThread);
+            if (hold != null) {
+                hold.holdCount++;
+                return true;
+            }
+            String lockPath = awaitLockNode(time, unit);
+            if (lockPath == null) {
+                return false;
+            }
+            holds.put(currentThread, new ReadHold(lockPath));
+            return true;
+        }
+
+        @Override
+        public void unlock() throws Exception {
+            Thread currentThread = Thread.currentThread();
+            ReadHold hold = holds.get(currentThread);
+            if (hold == null) {
+                throw new IllegalMonitorStateException("current thread does not hold the lock");
+            }
+            if (--hold.holdCount > 0) {
+                return;
+            }
+            try {
+                deleteLockNode(hold.lockPath);
+            } finally {
+                holds.remove(currentThread);
+            }
+        }
+
+        @Override
+        public boolean isLocked() {
+            return !holds.isEmpty();
+        }
+
+        /**
+         * 租约模式下每个持有读锁的线程给自己的读节点续约，读锁不经过本地排队锁
+         * @throws Exception 读节点已经被删除(租约过期或者会话过期)时抛出NoNodeException
+         */
+        @Override
+        public void renewLease() throws Exception {
+            ReadHold hold = holds.get(Thread.currentThread());
+            if (hold == null) {
+                throw new IllegalMonitorStateException("current thread does not hold the lock");
+            }
+            renewLease(hold.lockPath);
+        }
+
+        /**
+         * 当前线程的读节点的顺序号，和写锁的token在同一个序列里
+         * @return
+         */
+        @Override
+        public long getFencingToken() {
+            ReadHold hold = holds.get(Thread.currentThread());
+            if (hold == null) {
+                throw new IllegalMonitorStateException("current thread does not hold the lock");
+            }
+            return parseFencingToken(hold.lockPath);
+        }
+    }
+}
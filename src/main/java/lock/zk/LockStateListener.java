@@ -0,0 +1,15 @@
+package lock.zk;
+
+/**
+ * 持有的锁的状态变化通知，在zookeeper的事件线程里被调用，不能在里面阻塞
+ */
+public interface LockStateListener {
+
+    enum LockState {
+        HELD,// 持有锁，节点确认存在
+        SUSPENDED,// 连接断开，不确定锁还在不在，应该暂停依赖锁的操作
+        LOST// 节点已经不存在(会话过期或者被删除)，锁已经丢了
+    }
+
+    void stateChanged(ZookeeperDistributeLock lock, LockState state);
+}
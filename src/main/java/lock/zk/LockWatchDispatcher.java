@@ -0,0 +1,334 @@
+package lock.zk;
+
+import org.apache.zookeeper.AsyncCallback;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * 等待锁节点被删除的watcher分发器，一个zookeeper会话共用一个：
+ *      1. 记录每个路径上有哪些本地等待者，同一个路径不管有多少个等待者，只向zookeeper注册一次watch
+ *      2. 所有路径共用同一个Watcher对象，节点被删除时通知这个路径上所有的等待者
+ *      3. 用getData而不是exists设置watch：节点已经不存在时getData不会留下watch，
+ *         exists会留下一个等待节点创建的watch，顺序节点不会再被创建，这个watch会一直留在客户端的表里
+ *      4. 子节点变化(例如信号量的等待者)也一样，同一个目录只注册一次子节点watch
+ * 等待者放弃等待(超时、取消)时调用cancel，zookeeper里的watch仍然会在节点删除时触发一次，但不会再通知到它。
+ * 回调都在zookeeper的事件线程里执行，不能在里面阻塞。
+ * 分发器只弱引用zooKeeper，会话关闭、zooKeeper对象不再被使用后，分发器随着WeakHashMap的条目一起回收
+ */
+public class LockWatchDispatcher {
+
+    private static Logger logger = LoggerFactory.getLogger(LockWatchDispatcher.class);
+
+    private static final Map<ZooKeeper, LockWatchDispatcher> instances = new WeakHashMap<ZooKeeper, LockWatchDispatcher>();
+
+    /**
+     * 等待节点被删除的一方
+     */
+    public interface Listener {
+        /**
+         * 节点被删除了，或者开始等待时就已经不存在
+         * @param path
+         */
+        void nodeDeleted(String path);
+
+        /**
+         * 设置watch失败(例如连接断开)，需要等待者自己重新判断
+         * @param path
+         * @param code
+         */
+        void watchFailed(String path, KeeperException.Code code);
+    }
+
+    /**
+     * 等待节点被删除，同时关心节点数据变化的一方(例如租约模式下等待前面的节点写入租约)
+     */
+    public interface DataListener extends Listener {
+        /**
+         * 节点数据变化了，节点还在，继续等待它被删除
+         * @param path
+         */
+        void nodeDataChanged(String path);
+    }
+
+    /**
+     * 等待目录的子节点变化的一方
+     */
+    public interface ChildrenListener {
+        /**
+         * 子节点有变化(增加或者删除)，或者目录已经不存在
+         * @param path
+         */
+        void childrenChanged(String path);
+
+        /**
+         * 设置watch失败(例如连接断开)，需要等待者自己重新判断
+         * @param path
+         * @param code
+         */
+        void watchFailed(String path, KeeperException.Code code);
+    }
+
+    private final WeakReference<ZooKeeper> zooKeeper;// 强引用会让WeakHashMap的key永远不会被回收
+    private final Map<String, Set<Listener>> waiters = new HashMap<String, Set<Listener>>();// 只在持有this的锁时读写
+    private final Map<String, Set<ChildrenListener>> childWaiters = new HashMap<String, Set<ChildrenListener>>();// 只在持有this的锁时读写
+
+    private final Watcher watcher = new Watcher() {
+        public void process(WatchedEvent event) {
+            String path = event.getPath();
+            if (path == null) {
+                // 连接状态的事件，断线重连后zookeeper会自动恢复watch；会话过期后watch都没有了，通知所有等待者
+                if (event.getState() == Event.KeeperState.Expired) {
+                    expireAll();
+                }
+                return;
+            }
+            if (event.getType() == Event.EventType.NodeDeleted) {
+                dispatch(path, null);
+            } else if (event.getType() == Event.EventType.NodeDataChanged) {
+                // 数据变化也会消耗掉watch，还有人在等就重新设置
+                rewatch(path);
+                dispatchDataChanged(path);
+            }
+        }
+    };
+
+    private final AsyncCallback.DataCallback watchCallback = new AsyncCallback.DataCallback() {
+        public void processResult(int rc, String path, Object ctx, byte[] data, Stat stat) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code == KeeperException.Code.NONODE) {
+                dispatch(path, null);
+            } else if (code != KeeperException.Code.OK) {
+                dispatch(path, code);
+            }
+        }
+    };
+
+    private final Watcher childWatcher = new Watcher() {
+        public void process(WatchedEvent event) {
+            if (event.getPath() != null && event.getType() != Event.EventType.None) {
+                dispatchChildren(event.getPath(), null);
+            } else if (event.getPath() == null && event.getState() == Event.KeeperState.Expired) {
+                expireAll();
+            }
+        }
+    };
+
+    private final AsyncCallback.ChildrenCallback childWatchCallback = new AsyncCallback.ChildrenCallback() {
+        public void processResult(int rc, String path, Object ctx, List<String> children) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code == KeeperException.Code.NONODE) {
+                dispatchChildren(path, null);
+            } else if (code != KeeperException.Code.OK) {
+                dispatchChildren(path, code);
+            }
+        }
+    };
+
+    /**
+     * 取得会话对应的分发器
+     * @param zooKeeper
+     * @return
+     */
+    public static LockWatchDispatcher getInstance(ZooKeeper zooKeeper) {
+        synchronized (instances) {
+            LockWatchDispatcher dispatcher = instances.get(zooKeeper);
+            if (dispatcher == null) {
+                dispatcher = new LockWatchDispatcher(zooKeeper);
+                instances.put(zooKeeper, dispatcher);
+            }
+            return dispatcher;
+        }
+    }
+
+    private LockWatchDispatcher(ZooKeeper zooKeeper) {
+        this.zooKeeper = new WeakReference<ZooKeeper>(zooKeeper);
+    }
+
+    /**
+     * 等待path被删除，这个路径上第一个等待者才会访问zookeeper
+     * @param path
+     * @param listener
+     */
+    public void watchDeletion(String path, Listener listener) {
+        boolean first;
+        synchronized (this) {
+            Set<Listener> listeners = waiters.get(path);
+            first = listeners == null;
+            if (first) {
+                listeners = new LinkedHashSet<Listener>();
+                waiters.put(path, listeners);
+            }
+            listeners.add(listener);
+        }
+        ZooKeeper zk = zooKeeper.get();
+        if (first && zk != null) {
+            zk.getData(path, watcher, watchCallback, null);
+        }
+    }
+
+    /**
+     * 放弃等待
+     * @param path
+     * @param listener
+     */
+    public synchronized void cancel(String path, Listener listener) {
+        Set<Listener> listeners = waiters.get(path);
+        if (listeners != null && listeners.remove(listener) && listeners.isEmpty()) {
+            waiters.remove(path);
+        }
+    }
+
+    /**
+     * 等待path的子节点变化，这个目录上第一个等待者才会访问zookeeper。
+     * 要在读取子节点列表之前注册，同一个会话的请求按顺序处理，之后的变化都会通知到
+     * @param path
+     * @param listener
+     */
+    public void watchChildren(String path, ChildrenListener listener) {
+        boolean first;
+        synchronized (this) {
+            Set<ChildrenListener> listeners = childWaiters.get(path);
+            first = listeners == null;
+            if (first) {
+                listeners = new LinkedHashSet<ChildrenListener>();
+                childWaiters.put(path, listeners);
+            }
+            listeners.add(listener);
+        }
+        ZooKeeper zk = zooKeeper.get();
+        if (first && zk != null) {
+            zk.getChildren(path, childWatcher, childWatchCallback, null);
+        }
+    }
+
+    /**
+     * 不再等待子节点变化
+     * @param path
+     * @param listener
+     */
+    public synchronized void cancel(String path, ChildrenListener listener) {
+        Set<ChildrenListener> listeners = childWaiters.get(path);
+        if (listeners != null && listeners.remove(listener) && listeners.isEmpty()) {
+            childWaiters.remove(path);
+        }
+    }
+
+    private void dispatchChildren(String path, KeeperException.Code error) {
+        List<ChildrenListener> listeners;
+        synchronized (this) {
+            Set<ChildrenListener> removed = childWaiters.remove(path);
+            if (removed == null) {
+                return;
+            }
+            listeners = new ArrayList<ChildrenListener>(removed);
+        }
+        for (ChildrenListener listener : listeners) {
+            try {
+                if (error == null) {
+                    listener.childrenChanged(path);
+                } else {
+                    listener.watchFailed(path, error);
+                }
+            } catch (Exception e) {
+                logger.error("children watch listener error,path:" + path, e);
+            }
+        }
+    }
+
+    /**
+     * 通知路径上关心数据变化的等待者，它们仍然留在表里等待节点被删除
+     * @param path
+     */
+    private void dispatchDataChanged(String path) {
+        List<DataListener> listeners = new ArrayList<DataListener>();
+        synchronized (this) {
+            Set<Listener> current = waiters.get(path);
+            if (current == null) {
+                return;
+            }
+            for (Listener listener : current) {
+                if (listener instanceof DataListener) {
+                    listeners.add((DataListener) listener);
+                }
+            }
+        }
+        for (DataListener listener : listeners) {
+            try {
+                listener.nodeDataChanged(path);
+            } catch (Exception e) {
+                logger.error("lock watch listener error,path:" + path, e);
+            }
+        }
+    }
+
+    /**
+     * 会话过期，所有等待者都以SESSIONEXPIRED结束，不再留在表里
+     */
+    private void expireAll() {
+        List<String> paths;
+        List<String> childPaths;
+        synchronized (this) {
+            paths = new ArrayList<String>(waiters.keySet());
+            childPaths = new ArrayList<String>(childWaiters.keySet());
+        }
+        for (String path : paths) {
+            dispatch(path, KeeperException.Code.SESSIONEXPIRED);
+        }
+        for (String path : childPaths) {
+            dispatchChildren(path, KeeperException.Code.SESSIONEXPIRED);
+        }
+    }
+
+    private void rewatch(String path) {
+        synchronized (this) {
+            if (!waiters.containsKey(path)) {
+                return;
+            }
+        }
+        ZooKeeper zk = zooKeeper.get();
+        if (zk != null) {
+            zk.getData(path, watcher, watchCallback, null);
+        }
+    }
+
+    /**
+     * 取出路径上所有的等待者并通知，在锁外面调用等待者的回调
+     * @param path
+     * @param error 为null表示节点已经被删除
+     */
+    private void dispatch(String path, KeeperException.Code error) {
+        List<Listener> listeners;
+        synchronized (this) {
+            Set<Listener> removed = waiters.remove(path);
+            if (removed == null) {
+                return;
+            }
+            listeners = new ArrayList<Listener>(removed);
+        }
+        for (Listener listener : listeners) {
+            try {
+                if (error == null) {
+                    listener.nodeDeleted(path);
+                } else {
+                    listener.watchFailed(path, error);
+                }
+            } catch (Exception e) {
+                logger.error("lock watch listener error,path:" + path, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package lock.zk;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 按顺序号从小到大排好序的子节点。
+ * 每个节点名的顺序号(最后10位数字)只解析一次成long，排序时只比较long，不再每次比较都截取两个子串；
+ * 查找自己的节点用二分查找，不再用indexOf逐个比较字符串。
+ * 同一个目录下的顺序号由zookeeper保证不重复，不同前缀的节点(例如读节点和写节点)也能一起排序
+ */
+final class SortedChildren extends AbstractList<String> {
+
+    static final int SEQUENCE_LENGTH = 10;// 顺序节点后缀的长度
+
+    private static final Comparator<Node> ORDER = new Comparator<Node>() {
+        public int compare(Node lhs, Node rhs) {
+            return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+        }
+    };
+
+    private final Node[] nodes;
+
+    private SortedChildren(Node[] nodes) {
+        this.nodes = nodes;
+    }
+
+    /**
+     * 解析并排序，不是顺序节点的子节点会被忽略
+     * @param children getChildren的返回值
+     * @return
+     */
+    static SortedChildren of(List<String> children) {
+        Node[] nodes = new Node[children.size()];
+        int count = 0;
+        for (String name : children) {
+            long sequence = sequenceOf(name);
+            if (sequence >= 0) {
+                nodes[count++] = new Node(name, sequence);
+            }
+        }
+        if (count < nodes.length) {
+            nodes = Arrays.copyOf(nodes, count);
+        }
+        Arrays.sort(nodes, ORDER);
+        return new SortedChildren(nodes);
+    }
+
+    /**
+     * 取得节点名或者节点路径最后10位数字表示的顺序号，不截取子串
+     * @param name
+     * @return 不是顺序节点返回-1
+     */
+    static long sequenceOf(String name) {
+        int length = name.length();
+        if (length < SEQUENCE_LENGTH) {
+            return -1;
+        }
+        long sequence = 0;
+        for (int i = length - SEQUENCE_LENGTH; i < length; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            sequence = sequence * 10 + (c - '0');
+        }
+        return sequence;
+    }
+
+    /**
+     * 二分查找顺序号为sequence的节点
+     * @param sequence
+     * @return 没有找到返回-1
+     */
+    int indexOfSequence(long sequence) {
+        int low = 0;
+        int high = nodes.length - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midSequence = nodes[mid].sequence;
+            if (midSequence < sequence) {
+                low = mid + 1;
+            } else if (midSequence > sequence) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 按顺序号二分查找节点，找到后再确认名字相同
+     * @param nodeName
+     * @return 没有找到返回-1
+     */
+    int indexOfNode(String nodeName) {
+        int index = indexOfSequence(sequenceOf(nodeName));
+        return index >= 0 && nodes[index].name.equals(nodeName) ? index : -1;
+    }
+
+    long sequenceAt(int index) {
+        return nodes[index].sequence;
+    }
+
+    @Override
+    public String get(int index) {
+        return nodes[index].name;
+    }
+
+    @Override
+    public int size() {
+        return nodes.length;
+    }
+
+    private static class Node {
+        final String name;
+        final long sequence;
+
+        Node(String name, long sequence) {
+            this.name = name;
+            this.sequence = sequence;
+        }
+    }
+}
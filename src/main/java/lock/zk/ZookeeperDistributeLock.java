@@ -1,26 +1,63 @@
 package lock.zk;
 
+import lock.BackoffPolicy;
 import lock.DistributeLock;
+import lock.ExponentialBackoffPolicy;
+import lock.LockHandle;
 import org.apache.zookeeper.*;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.util.Collections;
-import java.util.Comparator;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.CountDownLatch;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
 
+/**
+ * 使用zookeeper实现的分布式锁，锁可重入：同一线程嵌套lock只增加本地计数，最外层unlock才删除节点。
+ * 同一个锁对象上的线程先在本地公平锁上排队，只有本地队首的线程在rootPath下创建临时顺序节点参与竞争。
+ * 分层模式：本进程持有锁期间，锁直接在本地线程之间移交，不再访问zookeeper；
+ *          连续本地移交maxLocalHandoffs次后必须释放znode，让其它进程有机会拿到锁。
+ * 异步获取：lockAsync/tryLockAsync不经过本地排队锁，每次获取都创建自己的节点，由zookeeper的异步回调和watcher驱动，
+ *          等待期间不占用线程，锁属于返回的LockHandle；同步的lock也是阻塞等待这个异步流程的结果。
+ * 只刷新前驱模式：只在创建节点后取一次子节点列表作为快照，前驱被删除后只用exists探测快照里更小的节点，
+ *          不再每次醒来都取整个列表，zookeeper为锁发出的流量随移交次数增长，而不是随排队人数的平方增长。
+ * 根目录是否存在在同一个会话内只判断一次，之后直接创建节点，发现根目录不存在(NONODE)时再重新创建。
+ * 受保护的节点：节点名是 前缀 + 本次获取的guid + "-" + 顺序号，创建时连接断开(服务端可能已经创建成功)，
+ *          重试前先按guid找回已经创建的节点，不会留下占着队列、直到会话过期才消失的孤儿节点。
+ * 会话感知：配合ConnectionStateWatcher使用时，连接断开把持有的锁标记为SUSPENDED，会话过期或者节点消失标记为LOST，
+ *          并通知LockStateListener，持有锁的一方可以立刻停止依赖锁的操作；可以选择在锁丢失后自动重新排队。
+ * 租约模式：拿到锁时把租约时长写进节点数据，持有线程要在租约内调用renewLease续约(每次续约节点的version加1)。
+ *          等待者在自己的本地时钟上计时，前面的节点整个租约期内version都没有变化，就认为持有者卡住了(死锁、长时间GC)，
+ *          带着看到的version删除它，持有者刚好续约时删除会失败。不比较不同机器的时间，不受时钟偏差影响。
+ */
 public class ZookeeperDistributeLock implements DistributeLock {
 
     private static Logger logger = LoggerFactory.getLogger(ZookeeperDistributeLock.class);
     
     public static void main(String[] args) throws Exception {
-        ZooKeeper zooKeeper = new ZooKeeper("192.168.56.110:2181", 60000, null);
+        ConnectionStateWatcher connectionWatcher = new ConnectionStateWatcher();
+        ZooKeeper zooKeeper = new ZooKeeper("192.168.56.110:2181", 60000, connectionWatcher);
         System.out.println(zooKeeper);
         ZookeeperDistributeLock myLock = new ZookeeperDistributeLock(zooKeeper, "/test", "lock-");
+        myLock.setConnectionStateWatcher(connectionWatcher);
+        myLock.addStateListener(new LockStateListener() {
+            public void stateChanged(ZookeeperDistributeLock lock, LockState state) {
+                System.out.println("lock state changed:" + state);
+            }
+        });
         while (true) {
             try {
                 myLock.lock();
@@ -35,18 +72,274 @@ public class ZookeeperDistributeLock implements DistributeLock {
 
 
 
-    private ZooKeeper zooKeeper;
+    private volatile ZooKeeper zooKeeper;// 会话过期后可以通过rebind换成新的会话
     private String rootPath;// 根路径名
     private String lockNamePre;// 锁前缀
-    private String currentLockPath;// 用于保存某个客户端在locker下面创建成功的顺序节点，用于后续相关操作使用（如判断）
+    private volatile String currentLockPath;// 用于保存某个客户端在locker下面创建成功的顺序节点，用于后续相关操作使用（如判断）
     private static int MAX_RETRY_COUNT = 10;// 最大重试次数
+    private static int MAX_PREDECESSOR_PROBES = 16;// 只刷新前驱模式下一次最多探测的节点数，这些节点都不存在了才重新取子节点列表
+    // 默认的重试策略：网络闪断时所有客户端同时重试会把zookeeper压垮，间隔从10毫秒开始翻倍，最长1秒
+    private static final BackoffPolicy DEFAULT_BACKOFF_POLICY = new ExponentialBackoffPolicy(10, 1000, TimeUnit.MILLISECONDS);
+
+    // 异步获取锁的超时定时器，所有锁共用
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "zk-lock-timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final AsyncCallback.VoidCallback RECLAIM_CALLBACK = new AsyncCallback.VoidCallback() {
+        public void processResult(int rc, String path, Object ctx) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            // 还有其它节点(NOTEMPTY)或者已经被别人回收(NONODE)都是正常情况
+            if (code != KeeperException.Code.OK && code != KeeperException.Code.NOTEMPTY && code != KeeperException.Code.NONODE) {
+                logger.warn("reclaim rootPath error,path:{},code:{}", path, code);
+            }
+        }
+    };
+    private static final AsyncCallback.VoidCallback DELETE_CALLBACK = new AsyncCallback.VoidCallback() {
+        public void processResult(int rc, String path, Object ctx) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code != KeeperException.Code.OK && code != KeeperException.Code.NONODE) {
+                logger.error("delete lock node error,path:{},code:{}", path, code);
+            }
+        }
+    };
+
+    private final ReentrantLock localLock = new ReentrantLock(true);// 本地排队锁，同时记录持有线程和重入次数
+    private final int maxLocalHandoffs;// 分层模式下连续本地移交的上限，小于0表示不开启分层模式
+    private int localHandoffs;// 当前znode已经在本地连续移交的次数，只在持有localLock时读写
+    private volatile boolean distributedHeld;// 本进程是否持有zookeeper上的锁节点
+    private volatile BackoffPolicy backoffPolicy = DEFAULT_BACKOFF_POLICY;// 出错重试之前的等待策略
+    private volatile boolean predecessorOnly;// 是否开启只刷新前驱模式
+    private volatile boolean reclaimEmptyRoot;// 释放锁后是否删除空的根目录
+    private volatile long rootPathSessionId = -1;// 确认根目录存在时的会话id，同一个会话内不再重复判断
+    private final List<LockStateListener> stateListeners = new CopyOnWriteArrayList<LockStateListener>();
+    private final Object stateMonitor = new Object();// 保护lockState和reacquisition
+    private volatile LockStateListener.LockState lockState;// 本进程持有znode时的状态，没有持有时为null
+    private CompletableFuture<LockHandle> reacquisition;// 锁丢失后重新排队的获取，只在持有stateMonitor时读写
+    private volatile boolean reacquireOnLost;// 锁丢失后是否自动重新排队
+    private volatile LockWatchDispatcher watchDispatcher;// 会话共用的watcher分发器，和zooKeeper一起替换
+    private volatile long leaseMillis;// 租约时长，小于等于0表示不开启租约模式
+    private volatile String heldWatchPath;// 租约模式下持有者正在监视的自己的节点
+    private ConnectionStateWatcher connectionWatcher;// 注册了connectionListener的watcher，只在持有stateMonitor时读写
+
+    // 注册到ConnectionStateWatcher上的监听器，同一个锁对象只注册这一个，移除时要用它
+    private final ConnectionStateWatcher.Listener connectionListener = new ConnectionStateWatcher.Listener() {
+        public void stateChanged(ConnectionStateWatcher.ConnectionState state) {
+            onConnectionStateChanged(state);
+        }
+    };
+
+    // 租约模式下持有者监视自己的节点，租约过期被等待者删除时标记为LOST
+    private final LockWatchDispatcher.Listener holderListener = new LockWatchDispatcher.Listener() {
+        public void nodeDeleted(String path) {
+            if (path.equals(currentLockPath)) {
+                logger.warn("lock node deleted,lease may have expired,lockPath:{}", path);
+                onLockLost();
+            }
+        }
+
+        public void watchFailed(String path, KeeperException.Code code) {
+            // 连接有问题，重新连上后再设置
+            logger.warn("watch lock node failed,path:{},code:{}", path, code);
+        }
+    };
 
     public ZookeeperDistributeLock(ZooKeeper zookeeper, String rootPath, String lockNamePre) {
-        logger.info("rootPath:{},lockNamePre:{}", rootPath, lockNamePre);
+        this(zookeeper, rootPath, lockNamePre, -1);
+    }
+
+    /**
+     * @param maxLocalHandoffs 大于等于0时开启分层模式，表示持有znode期间最多连续在本地移交多少次
+     */
+    public ZookeeperDistributeLock(ZooKeeper zookeeper, String rootPath, String lockNamePre, int maxLocalHandoffs) {
+        this(zookeeper, rootPath, lockNamePre, maxLocalHandoffs, true);
+    }
+
+    /**
+     * @param initRootPath 根目录已经确认存在时(例如由ZookeeperLockFactory创建过)可以跳过初始化，省掉一次zookeeper访问
+     */
+    ZookeeperDistributeLock(ZooKeeper zookeeper, String rootPath, String lockNamePre, int maxLocalHandoffs, boolean initRootPath) {
+        logger.info("rootPath:{},lockNamePre:{},maxLocalHandoffs:{}", new Object[]{rootPath, lockNamePre, maxLocalHandoffs});
         this.zooKeeper = zookeeper;
         this.rootPath = rootPath;
         this.lockNamePre = lockNamePre;
-        init();
+        this.maxLocalHandoffs = maxLocalHandoffs;
+        this.watchDispatcher = LockWatchDispatcher.getInstance(zookeeper);
+        if (initRootPath) {
+            init();
+        } else {
+            // 调用方已经确认过根目录存在，真的不存在时创建节点会返回NONODE，那时再创建
+            rootPathSessionId = zookeeper.getSessionId();
+        }
+    }
+
+    /**
+     * 设置出错(例如网络闪断)后重新创建节点之前的等待策略
+     * @param backoffPolicy
+     */
+    public void setBackoffPolicy(BackoffPolicy backoffPolicy) {
+        this.backoffPolicy = backoffPolicy;
+    }
+
+    /**
+     * 开启只刷新前驱模式：前驱被删除后不再取整个子节点列表，而是用缓存的快照加上exists找到新的前驱。
+     * 比自己后创建的节点顺序号一定更大，不会排到自己前面，所以快照里比自己小的节点只会减少，不会增加
+     * @param predecessorOnly
+     */
+    public void setPredecessorOnly(boolean predecessorOnly) {
+        this.predecessorOnly = predecessorOnly;
+    }
+
+    /**
+     * 释放锁(或者放弃等待)后尝试删除根目录，只有根目录下已经没有节点时才会删除成功，
+     * 用来回收大量按key创建、用完就不再使用的根目录(相当于zookeeper 3.5以后的CONTAINER节点)。
+     * 注意根目录重建后顺序号从0重新开始，fencing token不再单调递增，依赖fencing token的锁不要开启
+     * @param reclaimEmptyRoot
+     */
+    public void setReclaimEmptyRoot(boolean reclaimEmptyRoot) {
+        this.reclaimEmptyRoot = reclaimEmptyRoot;
+    }
+
+    /**
+     * 监听会话状态，ConnectionStateWatcher要作为默认watcher传给创建zooKeeper的构造函数。
+     * 之前设置过的watcher会先移除，一个锁对象同时只监听一个会话
+     * @param watcher
+     */
+    public void setConnectionStateWatcher(ConnectionStateWatcher watcher) {
+        synchronized (stateMonitor) {
+            removeConnectionStateWatcher();
+            watcher.addListener(connectionListener);
+            connectionWatcher = watcher;
+        }
+    }
+
+    /**
+     * 不再监听会话状态。锁对象不再使用时(例如从LockRegistry回收)要调用，
+     * 否则ConnectionStateWatcher一直引用着它，锁对象不会被回收
+     */
+    public void removeConnectionStateWatcher() {
+        synchronized (stateMonitor) {
+            if (connectionWatcher != null) {
+                connectionWatcher.removeListener(connectionListener);
+                connectionWatcher = null;
+            }
+        }
+    }
+
+    public void addStateListener(LockStateListener listener) {
+        stateListeners.add(listener);
+    }
+
+    public void removeStateListener(LockStateListener listener) {
+        stateListeners.remove(listener);
+    }
+
+    /**
+     * 锁丢失后自动重新创建节点排队，重新拿到后状态回到HELD，持有线程不用释放锁再重新获取。
+     * 会话过期后zooKeeper对象不能再用，要等调用rebind换上新的会话后才会重新排队
+     * @param reacquireOnLost
+     */
+    public void setReacquireOnLost(boolean reacquireOnLost) {
+        this.reacquireOnLost = reacquireOnLost;
+    }
+
+    /**
+     * 开启租约模式：拿到锁后必须在租约内调用renewLease续约，否则等待的客户端会删除节点，锁被别人拿走，
+     * 持有者监视着自己的节点，被删除时锁标记为LOST。
+     * 分层模式下本地移交不会续约，新的持有线程也要调用renewLease；异步获取的锁不能续约，持有时间不能超过租约
+     * @param lease
+     * @param unit
+     */
+    public void setLease(long lease, TimeUnit unit) {
+        this.leaseMillis = unit.toMillis(lease);
+    }
+
+    /**
+     * 会话过期后换上新建的ZooKeeper，之后的获取、释放都使用新的会话。
+     * 锁已经丢失并且开启了自动重新排队时，在新的会话上重新排队。
+     * 旧会话的ConnectionStateWatcher会被移除，新会话的要再调用一次setConnectionStateWatcher
+     * @param zooKeeper 新的会话
+     */
+    public void rebind(ZooKeeper zooKeeper) {
+        removeConnectionStateWatcher();
+        this.zooKeeper = zooKeeper;
+        this.watchDispatcher = LockWatchDispatcher.getInstance(zooKeeper);
+        rootPathSessionId = -1;// 根目录要在新的会话里重新确认
+        boolean pending;
+        synchronized (stateMonitor) {
+            pending = lockState == LockStateListener.LockState.LOST && reacquisition == null;
+        }
+        if (pending && reacquireOnLost) {
+            logger.info("zookeeper rebound,reacquire lost lock,rootPath:{}", rootPath);
+            reacquire();
+        }
+    }
+
+    /**
+     * 持有线程续约，节点已经被删除(租约过期或者会话过期)时锁标记为LOST并抛出异常
+     * @throws Exception
+     */
+    public void renewLease() throws Exception {
+        if (!localLock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("current thread does not hold the lock");
+        }
+        try {
+            renewLease(currentLockPath);
+        } catch (KeeperException.NoNodeException e) {
+            onLockLost();
+            throw e;
+        }
+    }
+
+    /**
+     * 给awaitLockNode拿到的节点续约，子类自己记录持有的节点时(例如读锁)使用
+     * @param lockPath
+     * @throws Exception 节点已经被删除时抛出NoNodeException
+     */
+    protected void renewLease(String lockPath) throws Exception {
+        long lease = leaseMillis;
+        if (lease > 0) {
+            zooKeeper.setData(lockPath, leaseData(lease), -1);
+        }
+    }
+
+    private static byte[] leaseData(long lease) {
+        return String.valueOf(lease).getBytes(Charset.forName("UTF-8"));
+    }
+
+    /**
+     * 节点数据里的租约时长，等待者或者没有开启租约模式的节点没有数据
+     * @param data
+     * @return 没有租约返回0
+     */
+    private static long parseLease(byte[] data) {
+        if (data == null || data.length == 0) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(new String(data, Charset.forName("UTF-8")));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 本进程持有的锁的状态，没有持有时返回null
+     * @return
+     */
+    public LockStateListener.LockState getLockState() {
+        return lockState;
+    }
+
+    String getRootPath() {
+        return rootPath;
+    }
+
+    String getLockNamePre() {
+        return lockNamePre;
     }
 
     /**
@@ -54,181 +347,294 @@ public class ZookeeperDistributeLock implements DistributeLock {
      */
     private void init() {
         try {
+            long sessionId = zooKeeper.getSessionId();
             Stat stat = zooKeeper.exists(rootPath, false);// 判断一下根目录是否存在
             if (stat == null) {
                 zooKeeper.create(rootPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
             }
+            rootPathSessionId = sessionId;
+        } catch (KeeperException.NodeExistsException e) {
+            rootPathSessionId = zooKeeper.getSessionId();
         } catch (Exception e) {
             logger.error("create rootPath error", e);
         }
     }
     /**
-     * 取得锁的排序号
-     *
-     * @param str
-     * @param lockName
+     * 锁节点的顺序号就是fencing token：同一个根目录下后创建的节点顺序号一定更大。
+     * 顺序号由根目录维护，根目录被删除重建后会从0重新开始
+     * @param lockPath
      * @return
      */
-    private String getLockNodeNumber(String str, String lockName) {
-        int index = str.lastIndexOf(lockName);
-        if (index >= 0) {
-            index += lockName.length();
-            return index <= str.length() ? str.substring(index) : "";
-        }
-        return str;
+    static long parseFencingToken(String lockPath) {
+        return SortedChildren.sequenceOf(lockPath);
     }
 
     /**
-     * 取得锁的排序列表
-     *
+     * 当前线程持有的锁的fencing token。分层模式下本地移交时节点不变，本进程内先后持有锁的线程会拿到同一个token
      * @return
-     * @throws Exception
      */
-    private List<String> getSortedChildren() throws Exception {
-        List<String> children = zooKeeper.getChildren(rootPath, false);
-        if (children != null && !children.isEmpty()) {
-            Collections.sort(children, new Comparator<String>() {
-                public int compare(String lhs, String rhs) {
-                    return getLockNodeNumber(lhs, lockNamePre).compareTo(getLockNodeNumber(rhs, lockNamePre));
-                }
-            });
+    public long getFencingToken() {
+        if (!localLock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("current thread does not hold the lock");
         }
-        logger.info("sort childRen:{}", children);
-        return children;
+        return parseFencingToken(currentLockPath);
     }
 
     /**
-     *  该方法用于判断自己是否获取到了锁，即自己创建的顺序节点在locker的所有子节点中是否最小.如果没有获取到锁，则等待其它客户端锁的释放，
-     * 并且稍后重试直到获取到锁或者超时
-     * @param startMillis
-     * @param millisToWait
+     * 只尝试一次，不等待其它客户端释放锁：创建节点和取子节点列表两个请求连着发出去，只等一个往返，
+     * 不是最小的节点就异步删除。本地有其它线程持有锁时直接返回false
      * @return
+     * @throws Exception
      */
-    private boolean waitToLock(long startMillis, Long millisToWait) throws Exception{
-        boolean haveTheLock = false;
-        boolean doDelete = false;
-
+    @Override
+    public boolean tryLock() throws Exception {
+        if (!localLock.tryLock()) {
+            return false;
+        }
+        boolean hasTheLock = false;
         try {
-            while (!haveTheLock) {
-                logger.info("get Lock Begin");
-                // 该方法实现获取locker节点下的所有顺序节点，并且从小到大排序,
-                List<String> children = getSortedChildren();
-
-                String sequenceNodeName = currentLockPath.substring(rootPath.length() + 1);
-
-                // 计算刚才客户端创建的顺序节点在locker的所有子节点中排序位置，如果是排序为0，则表示获取到了锁
-                int ourIndex = children.indexOf(sequenceNodeName);
-
-				/*
-				 * 如果在getSortedChildren中没有找到之前创建的[临时]顺序节点，这表示可能由于网络闪断而导致
-				 * Zookeeper认为连接断开而删除了我们创建的节点，此时需要抛出异常，让上一级去处理
-				 * 上一级的做法是捕获该异常，并且执行重试指定的次数 见后面的 attemptLock方法
-				 */
-                if (ourIndex < 0) {
-                    logger.error("not find node:{}", sequenceNodeName);
-                    throw new Exception("节点没有找到: " + sequenceNodeName);
-                }
+            if (distributedHeld) {
+                hasTheLock = true;
+            } else if (attemptLock(0, TimeUnit.MILLISECONDS)) {
+                // 0表示只判断一次，不等待
+                onDistributedAcquired();
+                hasTheLock = true;
+            }
+        } finally {
+            if (!hasTheLock) {
+                localLock.unlock();
+            }
+        }
+        return hasTheLock;
+    }
 
-                // 如果当前客户端创建的节点在locker子节点列表中位置大于0，表示其它客户端已经获取了锁
-                // 此时当前客户端需要等待其它客户端释放锁，
-                boolean isGetTheLock = ourIndex == 0;
+    @Override
+    public void lock() throws Exception {
+        localLock.lock();
+        try {
+            // 重入或者锁已经移交到本进程手里时直接拿到，否则本地队首去zookeeper竞争
+            if (!distributedHeld) {
+                // -1,null表示阻塞等待，不设置超时时间
+                attemptLock(-1, null);
+                onDistributedAcquired();
+            }
+        } catch (Exception e) {
+            localLock.unlock();
+            throw e;
+        }
+    }
 
-                // 如何判断其它客户端是否已经释放了锁？从子节点列表中获取到比自己次小的哪个节点，并对其建立监听
-                String pathToWatch = isGetTheLock ? null : children.get(ourIndex - 1);
+    @Override
+    public boolean lock(long time, TimeUnit unit) throws Exception {
+        if (time <= 0) {
+            throw new Exception("Lock wait for time must greater than 0");
+        }
 
-                if (isGetTheLock) {
-                    logger.info("get the lock,currentLockPath:{}", currentLockPath);
-                    haveTheLock = true;
-                } else {
-                    // 如果次小的节点被删除了，则表示当前客户端的节点应该是最小的了，所以使用CountDownLatch来实现等待
-                    String previousSequencePath = rootPath.concat("/").concat(pathToWatch);
-                    final CountDownLatch latch = new CountDownLatch(1);
-                    final Watcher previousListener = new Watcher() {
-                        public void process(WatchedEvent event) {
-                            if (event.getType() == Event.EventType.NodeDeleted) {
-                                latch.countDown();
-                            }
-                        }
-                    };
-
-                    // 如果节点不存在会出现异常
-                    zooKeeper.exists(previousSequencePath, previousListener);
-
-                    // 如果有超时时间，刚到超时时间就返回
-                    if (millisToWait != null) {
-                        millisToWait -= (System.currentTimeMillis() - startMillis);
-                        startMillis = System.currentTimeMillis();
-                        if (millisToWait <= 0) {
-                            doDelete = true; // timed out - delete our node
-                            break;
-                        }
+        if (unit == null) {
+            throw new Exception("TimeUnit can not be null");
+        }
 
-                        latch.await(millisToWait, TimeUnit.MICROSECONDS);
-                    } else {
-                        latch.await();
-                    }
+        final long startMillis = System.currentTimeMillis();
+        boolean queued = false;
+        try {
+            queued = localLock.tryLock(time, unit);
+        } finally {
+            if (!queued) {
+                // 可能是移交给自己的锁，超时或者被中断后没有人接手
+                releaseOrphanedHandoff();
+            }
+        }
+        if (!queued) {
+            return false;
+        }
+        boolean hasTheLock = false;
+        try {
+            if (distributedHeld) {
+                hasTheLock = true;
+            } else {
+                // 本地排队已经花掉的时间要从zookeeper的等待时间里扣除
+                long millisToWait = unit.toMillis(time) - (System.currentTimeMillis() - startMillis);
+                if (millisToWait > 0 && attemptLock(millisToWait, TimeUnit.MILLISECONDS)) {
+                    onDistributedAcquired();
+                    hasTheLock = true;
                 }
             }
-        } catch (Exception e) {
-            // 发生异常需要删除节点
-            logger.error("waitToLock exception", e);
-            doDelete = true;
-            throw e;
         } finally {
-            // 如果需要删除节点
-            if (doDelete) {
-                unlock();
+            if (!hasTheLock) {
+                localLock.unlock();
             }
         }
-        logger.info("get Lock end,haveTheLock=" + haveTheLock);
-        return haveTheLock;
+        return hasTheLock;
     }
 
-    private String createLockNode(String path) throws Exception{
-        Stat stat = zooKeeper.exists(rootPath, false);
-        // 判断一下根目录是否存在
-        if (stat == null) {
-            zooKeeper.create(rootPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+    private boolean isHierarchical() {
+        return maxLocalHandoffs >= 0;
+    }
+
+    private void onDistributedAcquired() {
+        distributedHeld = true;
+        localHandoffs = 0;
+        synchronized (stateMonitor) {
+            lockState = LockStateListener.LockState.HELD;
         }
-        return zooKeeper.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL);
+        watchHeldNode();
     }
 
-    @Override
-    public boolean tryLock() throws Exception {
-        logger.info("tryLock Lock Begin");
-        // 该方法实现获取locker节点下的所有顺序节点，并且从小到大排序,
-        List<String> children = getSortedChildren();
-        String sequenceNodeName = currentLockPath.substring(rootPath.length() + 1);
+    /**
+     * 租约模式下监视自己持有的节点，同一个节点上本进程的等待者共用一个zookeeper watch
+     */
+    private void watchHeldNode() {
+        String path = currentLockPath;
+        if (leaseMillis <= 0 || path == null) {
+            return;
+        }
+        heldWatchPath = path;
+        watchDispatcher.watchDeletion(path, holderListener);
+    }
 
-        // 计算刚才客户端创建的顺序节点在locker的所有子节点中排序位置，如果是排序为0，则表示获取到了锁
-        int ourIndex = children.indexOf(sequenceNodeName);
+    private void cancelHeldWatch() {
+        String path = heldWatchPath;
+        if (path != null) {
+            heldWatchPath = null;
+            watchDispatcher.cancel(path, holderListener);
+        }
+    }
+
+    /**
+     * 释放znode之前清除状态，正在进行的重新排队也要放弃
+     */
+    private void clearLockState() {
+        cancelHeldWatch();
+        CompletableFuture<LockHandle> pending;
+        synchronized (stateMonitor) {
+            lockState = null;
+            pending = reacquisition;
+            reacquisition = null;
+        }
+        if (pending != null) {
+            pending.cancel(false);
+        }
+    }
 
-        if (ourIndex < 0) {
-            logger.error("not find node:{}", sequenceNodeName);
-            throw new Exception("节点没有找到: " + sequenceNodeName);
+    private void onConnectionStateChanged(ConnectionStateWatcher.ConnectionState state) {
+        switch (state) {
+            case SUSPENDED:
+                changeLockState(LockStateListener.LockState.HELD, LockStateListener.LockState.SUSPENDED);
+                break;
+            case RECONNECTED:
+                if (lockState == LockStateListener.LockState.SUSPENDED) {
+                    verifyLockNode();
+                }
+                if (heldWatchPath != null) {
+                    // 断线期间设置watch可能失败了，重新设置，已经有watch时不会再访问zookeeper
+                    watchHeldNode();
+                }
+                break;
+            case LOST:
+                onLockLost();
+                break;
+            default:
+                break;
         }
+    }
 
-        // 如果当前客户端创建的节点在locker子节点列表中位置大于0，表示其它客户端已经获取了锁
-        return ourIndex == 0;
+    private boolean changeLockState(LockStateListener.LockState expect, LockStateListener.LockState update) {
+        synchronized (stateMonitor) {
+            if (lockState != expect) {
+                return false;
+            }
+            lockState = update;
+        }
+        notifyStateListeners(update);
+        return true;
     }
 
-    @Override
-    public void lock() throws Exception {
-        // -1,null表示阻塞等待，不设置超时时间
-        attemptLock(-1,null);
+    private void notifyStateListeners(LockStateListener.LockState state) {
+        for (LockStateListener listener : stateListeners) {
+            try {
+                listener.stateChanged(this, state);
+            } catch (Exception e) {
+                logger.error("lock state listener error", e);
+            }
+        }
     }
 
-    @Override
-    public boolean lock(long time, TimeUnit unit) throws Exception {
-        if (time <= 0) {
-            throw new Exception("Lock wait for time must greater than 0");
+    /**
+     * 会话没有过期就重新连上了，确认节点还在才回到HELD
+     */
+    private void verifyLockNode() {
+        final String path = currentLockPath;
+        if (path == null) {
+            return;
         }
+        zooKeeper.exists(path, false, new AsyncCallback.StatCallback() {
+            public void processResult(int rc, String path, Object ctx, Stat stat) {
+                KeeperException.Code code = KeeperException.Code.get(rc);
+                if (code == KeeperException.Code.OK) {
+                    changeLockState(LockStateListener.LockState.SUSPENDED, LockStateListener.LockState.HELD);
+                } else if (code == KeeperException.Code.NONODE) {
+                    onLockLost();
+                }
+                // 其它错误说明连接又断了，等下一次连接事件
+            }
+        }, null);
+    }
 
-        if (unit == null) {
-            throw new Exception("TimeUnit can not be null");
+    private void onLockLost() {
+        synchronized (stateMonitor) {
+            if (lockState == null || lockState == LockStateListener.LockState.LOST) {
+                return;
+            }
+            lockState = LockStateListener.LockState.LOST;
+        }
+        logger.warn("lock lost,lockPath:{}", currentLockPath);
+        cancelHeldWatch();
+        notifyStateListeners(LockStateListener.LockState.LOST);
+        if (reacquireOnLost && zooKeeper.getState().isAlive()) {
+            reacquire();
+        } else if (reacquireOnLost) {
+            // 会话已经过期，等rebind换上新的会话再重新排队
+            logger.warn("zookeeper session expired,wait for rebind to reacquire,rootPath:{}", rootPath);
         }
-        return attemptLock(time, unit);
+    }
 
+    /**
+     * 锁丢失后重新创建节点排队，拿到后替换currentLockPath，持有线程已经释放了就删除新节点
+     */
+    private void reacquire() {
+        final CompletableFuture<LockHandle> future = acquire(null);
+        synchronized (stateMonitor) {
+            if (lockState != LockStateListener.LockState.LOST) {
+                // 持有线程已经释放了锁
+                future.cancel(false);
+                return;
+            }
+            reacquisition = future;
+        }
+        future.whenComplete(new BiConsumer<LockHandle, Throwable>() {
+            public void accept(LockHandle handle, Throwable throwable) {
+                if (handle == null) {
+                    return;
+                }
+                boolean adopted;
+                synchronized (stateMonitor) {
+                    adopted = reacquisition == future && lockState == LockStateListener.LockState.LOST;
+                    if (adopted) {
+                        currentLockPath = handle.getLockPath();
+                        lockState = LockStateListener.LockState.HELD;
+                        reacquisition = null;
+                    }
+                }
+                if (adopted) {
+                    logger.info("lock reacquired,lockPath:{}", handle.getLockPath());
+                    watchHeldNode();
+                    notifyStateListeners(LockStateListener.LockState.HELD);
+                } else {
+                    // 在zookeeper事件线程里，不能同步删除
+                    deleteLockNodeAsync(handle.getLockPath());
+                }
+            }
+        });
     }
 
     /**
@@ -238,39 +644,733 @@ public class ZookeeperDistributeLock implements DistributeLock {
      * @return
      */
     private boolean attemptLock(long time, TimeUnit unit) throws Exception{
-        final long startMillis = System.currentTimeMillis();
+        String lockPath = awaitLockNode(time, unit);
+        if (lockPath == null) {
+            return false;
+        }
+        currentLockPath = lockPath;
+        return true;
+    }
+
+    /**
+     * 创建一个锁节点并阻塞等待拿到锁，不经过本地排队锁，子类可以用它实现自己的本地语义(例如共享的读锁)。
+     * 获取过程由异步流程驱动，这里只是阻塞等待它的结果
+     * @param time 为0表示只判断一次，不等待
+     * @param unit 为null表示一直等待
+     * @return 拿到锁的节点路径，超时返回null
+     * @throws Exception
+     */
+    protected String awaitLockNode(long time, TimeUnit unit) throws Exception {
         final Long millisToWait = (unit != null) ? unit.toMillis(time) : null;
+        CompletableFuture<LockHandle> future = acquire(millisToWait);
 
-        boolean hasTheLock = false;
-        boolean isDone = false;
-        int retryCount = 0;
+        LockHandle handle;
+        try {
+            handle = future.get();
+        } catch (InterruptedException e) {
+            // 等待被中断就放弃本次获取，如果恰好已经拿到了锁，要把锁还回去
+            if (!future.cancel(false) && !future.isCompletedExceptionally()) {
+                LockHandle acquired = future.getNow(null);
+                if (acquired != null) {
+                    acquired.unlock();
+                }
+            }
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
 
-        // 网络闪断需要重试一试，最大重试次数MAX_RETRY_COUNT
-        while (!isDone) {
-            isDone = true;
-            try {
-                currentLockPath = createLockNode(rootPath.concat("/").concat(lockNamePre));
-                hasTheLock = waitToLock(startMillis, millisToWait);
+        return handle == null ? null : handle.getLockPath();
+    }
 
-            } catch (Exception e) {
-                if (retryCount++ < MAX_RETRY_COUNT) {
-                    isDone = false;
+    @Override
+    public CompletableFuture<LockHandle> lockAsync() {
+        return acquire(null);
+    }
+
+    @Override
+    public CompletableFuture<LockHandle> tryLockAsync(long time, TimeUnit unit) {
+        if (unit == null) {
+            throw new IllegalArgumentException("TimeUnit can not be null");
+        }
+        return acquire(unit.toMillis(time));
+    }
+
+    /**
+     * 从调用方已经创建好的节点开始异步等待锁，出错时不会重新创建节点，而是以异常结束
+     * @param lockPath 已经创建好的临时顺序节点
+     * @param millisToWait 为null表示一直等待，小于等于0表示只判断一次
+     * @return
+     */
+    CompletableFuture<LockHandle> awaitLockNodeAsync(String lockPath, Long millisToWait) {
+        Acquisition acquisition = new Acquisition(millisToWait, lockPath);
+        acquisition.start();
+        return acquisition.future;
+    }
+
+    /**
+     * 发起一次异步获取锁，不经过本地排队锁，每次都创建自己的顺序节点
+     * @param millisToWait 为null表示一直等待，小于等于0表示只判断一次
+     * @return
+     */
+    private CompletableFuture<LockHandle> acquire(Long millisToWait) {
+        Acquisition acquisition = new Acquisition(millisToWait);
+        acquisition.start();
+        return acquisition.future;
+    }
+
+    @Override
+    public void unlock() throws Exception {
+        if (!localLock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("current thread does not hold the lock");
+        }
+        boolean handedOff = false;
+        try {
+            // 重入的unlock只减少本地计数，只有最外层的unlock才考虑移交或者释放znode
+            if (localLock.getHoldCount() == 1) {
+                if (isHierarchical() && localLock.hasQueuedThreads() && localHandoffs < maxLocalHandoffs
+                        && lockState == LockStateListener.LockState.HELD) {
+                    // 本地还有线程在排队，并且没有超出公平预算，直接把锁移交给本地队首，不访问zookeeper。
+                    // 锁已经丢失或者连接断开时不能移交，释放后让队首重新去zookeeper竞争
+                    localHandoffs++;
+                    handedOff = true;
+                    logger.info("hand off lock locally,currentLockPath:{},handoffs:{}", currentLockPath, localHandoffs);
                 } else {
-                    throw e;
+                    distributedHeld = false;
+                    clearLockState();
+                    deleteLockNode();
                 }
             }
+        } finally {
+            localLock.unlock();
+        }
+        if (handedOff && !localLock.hasQueuedThreads()) {
+            // 排队的线程在移交前后超时或者被中断了，没有人接手
+            releaseOrphanedHandoff();
         }
+    }
 
-        return hasTheLock;
+    /**
+     * 分层模式下移交出去的锁没有线程接手(等待的线程超时或者被中断)时释放znode，
+     * 否则没有线程持有localLock，znode却一直留着，其它进程永远拿不到锁。
+     * 用tryLock抢本地锁，抢不到说明已经有线程接手了
+     */
+    private void releaseOrphanedHandoff() {
+        if (!distributedHeld || !localLock.tryLock()) {
+            return;
+        }
+        try {
+            if (distributedHeld && localLock.getHoldCount() == 1) {
+                logger.info("no local successor took over,release lock node:{}", currentLockPath);
+                distributedHeld = false;
+                clearLockState();
+                deleteLockNode();
+            }
+        } finally {
+            localLock.unlock();
+        }
     }
 
-    @Override
-    public void unlock() throws Exception {
+    /**
+     * 异步删除锁节点，可以在zookeeper的事件线程里调用
+     * @param lockPath
+     */
+    void deleteLockNodeAsync(String lockPath) {
+        zooKeeper.delete(lockPath, -1, DELETE_CALLBACK, null);
+    }
+
+    /**
+     * 开启了回收时异步删除根目录，根目录下还有节点时删除会失败，不影响其它客户端
+     */
+    private void reclaimRootPathAsync() {
+        if (reclaimEmptyRoot) {
+            zooKeeper.delete(rootPath, -1, RECLAIM_CALLBACK, null);
+        }
+    }
+
+    /**
+     * 锁是否被本进程的线程持有或者有线程在本地排队，不包括异步获取的锁
+     * @return
+     */
+    public boolean isLocked() {
+        return distributedHeld || localLock.isLocked() || localLock.hasQueuedThreads();
+    }
+
+    /**
+     * 根据排好序的子节点判断是否拿到了锁：拿到锁返回null，否则返回需要监视的节点名。
+     * 互斥锁要等待比自己次小的节点，子类可以只等待特定的节点(例如读锁只等待前面最近的写节点)
+     * @param sortedChildren
+     * @param ourIndex 自己的节点在sortedChildren中的位置
+     * @return
+     */
+    protected String getNodeToWatch(List<String> sortedChildren, int ourIndex) {
+        return ourIndex == 0 ? null : sortedChildren.get(ourIndex - 1);
+    }
+
+    /**
+     *  删除锁的节点
+     */
+    private void deleteLockNode() {
+        deleteLockNode(currentLockPath);
+    }
+
+    /**
+     *  删除awaitLockNode拿到的锁节点
+     * @param lockPath
+     */
+    protected void deleteLockNode(String lockPath) {
         try {
-            zooKeeper.delete(currentLockPath, -1);
+            zooKeeper.delete(lockPath, -1);
+            reclaimRootPathAsync();
         } catch (Exception e) {
             logger.error("unLock error", e);
 
         }
     }
+
+    /**
+     * 一次获取锁的过程：判断根目录是否存在 -> 创建临时顺序节点 -> 取得排序列表 -> 监视次小的节点，
+     * 每一步都是zookeeper的异步调用，在回调里推进到下一步，等待期间不占用任何线程。
+     * 回调都在zookeeper的事件线程里执行，future的后续动作也会在这个线程里执行，不能在里面阻塞
+     */
+    private class Acquisition {
+        final CompletableFuture<LockHandle> future = new CompletableFuture<LockHandle>();
+        private final Long millisToWait;// 为null表示一直等待，小于等于0表示只判断一次
+        private volatile String lockPath;// 本次创建的顺序节点
+        private volatile ScheduledFuture<?> timeout;
+        private int retryCount;// 网络闪断需要重试，只在zookeeper事件线程里读写
+        private BackoffPolicy.Backoff backoff;// 第一次重试时创建，只在zookeeper事件线程里读写
+        private final boolean precreated;// 节点由调用方创建好(例如ZookeeperMultiLock)，出错时不能自己重新创建
+        private SortedChildren snapshot;// 只刷新前驱模式下缓存的子节点列表，只在zookeeper事件线程里读写
+        private boolean rootPathRecovered;// 本次获取是否已经因为根目录不存在重新创建过，只在zookeeper事件线程里读写
+        private final String protectedPrefix = lockNamePre + UUID.randomUUID() + "-";// 本次获取创建的节点名前缀
+        private volatile boolean createPending;// 创建节点时连接断开，服务端上可能已经有本次获取的节点
+        private volatile String watchedPath;// 正在等待被删除的节点
+        private volatile LockWatchDispatcher.Listener watchListener;
+        private volatile int leaseCheckId;// 每次重新开始检查租约时加1，之前还在进行的检查看到后自己结束
+
+        Acquisition(Long millisToWait) {
+            this(millisToWait, null);
+        }
+
+        Acquisition(Long millisToWait, String createdLockPath) {
+            this.millisToWait = millisToWait;
+            this.lockPath = createdLockPath;
+            this.precreated = createdLockPath != null;
+        }
+
+        void start() {
+            // 超时、被取消或者出错时都要删除已经创建的节点
+            future.whenComplete(new BiConsumer<LockHandle, Throwable>() {
+                public void accept(LockHandle handle, Throwable throwable) {
+                    ScheduledFuture<?> task = timeout;
+                    if (task != null) {
+                        task.cancel(false);
+                    }
+                    String path = watchedPath;
+                    LockWatchDispatcher.Listener listener = watchListener;
+                    if (path != null && listener != null) {
+                        watchDispatcher.cancel(path, listener);
+                    }
+                    if (handle == null && lockPath != null) {
+                        deleteLockNodeAsync();
+                        reclaimRootPathAsync();
+                    } else if (handle == null && createPending) {
+                        deleteCreatedNodeAsync();
+                    }
+                }
+            });
+            if (millisToWait != null && millisToWait > 0) {
+                timeout = timer.schedule(new Runnable() {
+                    public void run() {
+                        if (future.complete(null)) {
+                            logger.info("get Lock timeout,lockPath:{}", lockPath);
+                        }
+                    }
+                }, millisToWait, TimeUnit.MILLISECONDS);
+            }
+            if (precreated) {
+                checkLock();
+            } else {
+                ensureRootPath();
+            }
+        }
+
+        private void ensureRootPath() {
+            final long sessionId = zooKeeper.getSessionId();
+            if (rootPathSessionId == sessionId) {
+                // 本会话内已经确认过根目录存在
+                createLockNode();
+                return;
+            }
+            zooKeeper.exists(rootPath, false, new AsyncCallback.StatCallback() {
+                public void processResult(int rc, String path, Object ctx, Stat stat) {
+                    KeeperException.Code code = KeeperException.Code.get(rc);
+                    if (code == KeeperException.Code.OK) {
+                        rootPathSessionId = sessionId;
+                        createLockNode();
+                    } else if (code == KeeperException.Code.NONODE) {
+                        createRootPath();
+                    } else {
+                        retryOrFail(KeeperException.create(code, path));
+                    }
+                }
+            }, null);
+        }
+
+        private void createRootPath() {
+            final long sessionId = zooKeeper.getSessionId();
+            zooKeeper.create(rootPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT, new AsyncCallback.StringCallback() {
+                public void processResult(int rc, String path, Object ctx, String name) {
+                    KeeperException.Code code = KeeperException.Code.get(rc);
+                    if (code == KeeperException.Code.OK || code == KeeperException.Code.NODEEXISTS) {
+                        rootPathSessionId = sessionId;
+                        createLockNode();
+                    } else {
+                        retryOrFail(KeeperException.create(code, path));
+                    }
+                }
+            }, null);
+        }
+
+        private void createLockNode() {
+            if (future.isDone()) {
+                return;
+            }
+            if (createPending) {
+                findCreatedNode();
+                return;
+            }
+            // 只判断一次时不用等create返回再取子节点列表
+            final boolean pipelined = millisToWait != null && millisToWait <= 0;
+            zooKeeper.create(rootPath.concat("/").concat(protectedPrefix), null, ZooDefs.Ids.OPEN_ACL_UNSAFE,
+                    CreateMode.EPHEMERAL_SEQUENTIAL, new AsyncCallback.StringCallback() {
+                public void processResult(int rc, String path, Object ctx, String name) {
+                    KeeperException.Code code = KeeperException.Code.get(rc);
+                    if (code == KeeperException.Code.NONODE && !rootPathRecovered) {
+                        // 缓存的根目录已经不存在(被回收或者被删除)，重新创建一次，不算作重试
+                        rootPathRecovered = true;
+                        rootPathSessionId = -1;
+                        createRootPath();
+                        return;
+                    }
+                    if (code == KeeperException.Code.CONNECTIONLOSS || code == KeeperException.Code.OPERATIONTIMEOUT) {
+                        // 不知道服务端有没有创建成功，重试前要先按guid查找
+                        createPending = true;
+                    }
+                    if (code != KeeperException.Code.OK) {
+                        retryOrFail(KeeperException.create(code, path));
+                        return;
+                    }
+                    onCreated(name, pipelined);
+                }
+            }, null);
+            if (pipelined) {
+                // zookeeper按顺序处理同一个会话的请求，返回的列表里一定有刚创建的节点，
+                // 而且create的回调一定先执行，这时lockPath已经设置好；create失败时lockPath为null，忽略这次结果
+                zooKeeper.getChildren(rootPath, false, new AsyncCallback.ChildrenCallback() {
+                    public void processResult(int rc, String path, Object ctx, List<String> children) {
+                        if (lockPath != null && !future.isDone()) {
+                            onChildren(rc, path, children);
+                        }
+                    }
+                }, null);
+            }
+        }
+
+        /**
+         * @param checking 取子节点列表的请求已经跟着create发出去了
+         */
+        private void onCreated(String name, boolean checking) {
+            lockPath = name;
+            if (future.isDone()) {
+                // 创建节点期间已经超时或者被取消
+                deleteLockNodeAsync();
+                return;
+            }
+            if (!checking) {
+                checkLock();
+            }
+        }
+
+        /**
+         * 上次创建节点时连接断开，先在子节点里按guid查找，找到就直接用它，找不到再重新创建
+         */
+        private void findCreatedNode() {
+            zooKeeper.getChildren(rootPath, false, new AsyncCallback.ChildrenCallback() {
+                public void processResult(int rc, String path, Object ctx, List<String> children) {
+                    KeeperException.Code code = KeeperException.Code.get(rc);
+                    if (code == KeeperException.Code.NONODE) {
+                        // 根目录都不存在，节点肯定没有创建成功
+                        createPending = false;
+                        createLockNode();
+                        return;
+                    }
+                    if (code != KeeperException.Code.OK) {
+                        retryOrFail(KeeperException.create(code, path));
+                        return;
+                    }
+                    createPending = false;
+                    String created = findProtectedNode(children);
+                    if (created != null) {
+                        logger.info("recover lock node after connection loss:{}", created);
+                        onCreated(rootPath.concat("/").concat(created), false);
+                    } else {
+                        createLockNode();
+                    }
+                }
+            }, null);
+        }
+
+        /**
+         * 放弃获取时，连接断开前可能创建成功的节点也要按guid找出来删除
+         */
+        private void deleteCreatedNodeAsync() {
+            zooKeeper.getChildren(rootPath, false, new AsyncCallback.ChildrenCallback() {
+                public void processResult(int rc, String path, Object ctx, List<String> children) {
+                    if (KeeperException.Code.get(rc) != KeeperException.Code.OK) {
+                        // 会话还在时节点会一直存在，只能等会话结束
+                        logger.warn("can not find lock node created before connection loss,prefix:{}", protectedPrefix);
+                        return;
+                    }
+                    String created = findProtectedNode(children);
+                    if (created != null) {
+                        ZookeeperDistributeLock.this.deleteLockNodeAsync(rootPath.concat("/").concat(created));
+                    }
+                }
+            }, null);
+        }
+
+        private String findProtectedNode(List<String> children) {
+            for (String child : children) {
+                if (child.startsWith(protectedPrefix)) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 判断自己创建的顺序节点在locker的所有子节点中是否最小，不是最小就监视getNodeToWatch返回的节点
+         */
+        private void checkLock() {
+            if (future.isDone()) {
+                return;
+            }
+            zooKeeper.getChildren(rootPath, false, new AsyncCallback.ChildrenCallback() {
+                public void processResult(int rc, String path, Object ctx, List<String> children) {
+                    onChildren(rc, path, children);
+                }
+            }, null);
+        }
+
+        private void onChildren(int rc, String path, List<String> children) {
+            KeeperException.Code code = KeeperException.Code.get(rc);
+            if (code != KeeperException.Code.OK) {
+                retryOrFail(KeeperException.create(code, path));
+                return;
+            }
+            String sequenceNodeName = lockPath.substring(rootPath.length() + 1);
+            SortedChildren sortedChildren = SortedChildren.of(children);
+            int ourIndex = sortedChildren.indexOfNode(sequenceNodeName);
+
+            // 没有找到自己的节点，可能是网络闪断导致节点被删除，删除后重新创建
+            if (ourIndex < 0) {
+                logger.error("not find node:{}", sequenceNodeName);
+                retryOrFail(new Exception("节点没有找到: " + sequenceNodeName));
+                return;
+            }
+            String nodeToWatch = getNodeToWatch(sortedChildren, ourIndex);
+            if (nodeToWatch == null) {
+                onAcquired();
+            } else if (millisToWait != null && millisToWait <= 0) {
+                // 只判断一次，没拿到锁就放弃
+                future.complete(null);
+            } else if (predecessorOnly) {
+                snapshot = sortedChildren;
+                watchCandidate(sortedChildren.indexOfNode(nodeToWatch));
+            } else {
+                watchPrevious(rootPath.concat("/").concat(nodeToWatch));
+            }
+        }
+
+        private void watchPrevious(String previousSequencePath) {
+            // 次小的节点被删除了(或者还没来得及监视就被删除了)，重新判断自己是不是最小的
+            watch(previousSequencePath, new LockWatchDispatcher.DataListener() {
+                public void nodeDeleted(String path) {
+                    checkLock();
+                }
+
+                public void nodeDataChanged(String path) {
+                    startLeaseCheck(path);
+                }
+
+                public void watchFailed(String path, KeeperException.Code code) {
+                    retryOrFail(KeeperException.create(code, path));
+                }
+            });
+        }
+
+        /**
+         * 只刷新前驱模式：监视快照里位置为index的节点，它被删除后只探测快照里更小的节点
+         * @param index
+         */
+        private void watchCandidate(final int index) {
+            watch(rootPath.concat("/").concat(snapshot.get(index)), new LockWatchDispatcher.DataListener() {
+                public void nodeDeleted(String path) {
+                    probeBelow(index);
+                }
+
+                public void nodeDataChanged(String path) {
+                    startLeaseCheck(path);
+                }
+
+                public void watchFailed(String path, KeeperException.Code code) {
+                    retryOrFail(KeeperException.create(code, path));
+                }
+            });
+        }
+
+        /**
+         * 通过会话共用的分发器等待节点被删除，同一个节点上的多个等待者只占一个zookeeper watch
+         */
+        private void watch(String path, LockWatchDispatcher.Listener listener) {
+            if (future.isDone()) {
+                return;
+            }
+            watchedPath = path;
+            watchListener = listener;
+            watchDispatcher.watchDeletion(path, listener);
+            startLeaseCheck(path);
+        }
+
+        /**
+         * 租约模式下开始检查正在等待的节点，节点数据变化(写入租约或者续约)时重新开始
+         */
+        private void startLeaseCheck(String path) {
+            if (leaseMillis > 0) {
+                checkLease(path, -1, ++leaseCheckId);
+            }
+        }
+
+        /**
+         * 租约模式：读一次前面节点的租约和version，整个租约期内version没有变化就删除它。
+         * 前面的节点还在等待、没有租约时不轮询，它拿到锁写入租约时会收到数据变化的通知
+         * @param path 正在等待的节点
+         * @param seenVersion 上一次看到的version，-1表示还没有看到过
+         * @param checkId 开始这次检查时的leaseCheckId
+         */
+        private void checkLease(final String path, final int seenVersion, final int checkId) {
+            if (future.isDone() || !path.equals(watchedPath) || checkId != leaseCheckId) {
+                return;
+            }
+            zooKeeper.getData(path, false, new AsyncCallback.DataCallback() {
+                public void processResult(int rc, String p, Object ctx, byte[] data, Stat stat) {
+                    if (KeeperException.Code.get(rc) != KeeperException.Code.OK) {
+                        // 节点已经删除或者连接有问题，由watch处理
+                        return;
+                    }
+                    long lease = parseLease(data);
+                    if (lease <= 0) {
+                        // 前面的节点还在等待，没有租约，等它写入租约的通知
+                    } else if (stat.getVersion() != seenVersion) {
+                        // 第一次看到或者已经续约，从现在开始计时
+                        scheduleLeaseCheck(path, stat.getVersion(), lease, checkId);
+                    } else {
+                        deleteStaleHolder(path, seenVersion, checkId);
+                    }
+                }
+            }, null);
+        }
+
+        private void scheduleLeaseCheck(final String path, final int seenVersion, long delayMillis, final int checkId) {
+            timer.schedule(new Runnable() {
+                public void run() {
+                    checkLease(path, seenVersion, checkId);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * 带着看到的version删除，持有者恰好续约时会返回BADVERSION，重新计时
+         */
+        private void deleteStaleHolder(final String path, int seenVersion, final int checkId) {
+            logger.warn("lease expired,delete stale lock node:{}", path);
+            zooKeeper.delete(path, seenVersion, new AsyncCallback.VoidCallback() {
+                public void processResult(int rc, String p, Object ctx) {
+                    KeeperException.Code code = KeeperException.Code.get(rc);
+                    if (code == KeeperException.Code.BADVERSION) {
+                        checkLease(path, -1, checkId);
+                    } else if (code != KeeperException.Code.OK && code != KeeperException.Code.NONODE) {
+                        logger.error("delete stale lock node error,path:{},code:{}", path, code);
+                    }
+                    // 删除成功后watch会通知等待者
+                }
+            }, null);
+        }
+
+        /**
+         * 快照里位置为index的节点已经不存在，同时探测排在它前面、会挡住自己的最近的几个节点(不设置watcher)，
+         * 最多MAX_PREDECESSOR_PROBES个，请求一次发出去，只等一个往返。找到还存在的最大的一个就监视它；
+         * 都不存在时，如果前面已经没有别的节点就拿到了锁，否则重新取一次子节点列表
+         * @param index
+         */
+        private void probeBelow(int index) {
+            if (future.isDone()) {
+                return;
+            }
+            final List<Integer> candidates = new ArrayList<Integer>();
+            String node = getNodeToWatch(snapshot, index);
+            while (node != null && candidates.size() < MAX_PREDECESSOR_PROBES) {
+                int candidate = snapshot.indexOfNode(node);
+                candidates.add(candidate);
+                node = getNodeToWatch(snapshot, candidate);
+            }
+            if (candidates.isEmpty()) {
+                onAcquired();
+                return;
+            }
+            final boolean truncated = node != null;// 窗口外还有排在前面的节点
+
+            // 回调都在zookeeper事件线程里按顺序执行，不需要同步
+            final KeeperException.Code[] results = new KeeperException.Code[candidates.size()];
+            final int[] pending = {candidates.size()};
+            AsyncCallback.StatCallback probeCallback = new AsyncCallback.StatCallback() {
+                public void processResult(int rc, String path, Object ctx, Stat stat) {
+                    results[(Integer) ctx] = KeeperException.Code.get(rc);
+                    if (--pending[0] > 0) {
+                        return;
+                    }
+                    for (int i = 0; i < results.length; i++) {
+                        if (results[i] == KeeperException.Code.OK) {
+                            watchCandidate(candidates.get(i));
+                            return;
+                        } else if (results[i] != KeeperException.Code.NONODE) {
+                            retryOrFail(KeeperException.create(results[i], rootPath.concat("/").concat(snapshot.get(candidates.get(i)))));
+                            return;
+                        }
+                    }
+                    if (truncated) {
+                        // 窗口里的节点都已经删除，窗口外的节点快照里的信息已经太旧，重新取子节点列表
+                        snapshot = null;
+                        checkLock();
+                    } else {
+                        // 排在前面的节点都已经删除
+                        onAcquired();
+                    }
+                }
+            };
+            for (int i = 0; i < candidates.size(); i++) {
+                zooKeeper.exists(rootPath.concat("/").concat(snapshot.get(candidates.get(i))), false, probeCallback, i);
+            }
+        }
+
+        private void onAcquired() {
+            logger.info("get the lock,lockPath:{}", lockPath);
+            if (backoff != null) {
+                backoff.onAcquired();
+            }
+            long lease = leaseMillis;
+            if (lease <= 0 || precreated) {
+                completeAcquired();
+                return;
+            }
+            // 先写入租约再交给持有者，等待者看到租约后才开始计时
+            zooKeeper.setData(lockPath, leaseData(lease), -1, new AsyncCallback.StatCallback() {
+                public void processResult(int rc, String path, Object ctx, Stat stat) {
+                    KeeperException.Code code = KeeperException.Code.get(rc);
+                    if (code == KeeperException.Code.OK) {
+                        completeAcquired();
+                    } else {
+                        retryOrFail(KeeperException.create(code, path));
+                    }
+                }
+            }, null);
+        }
+
+        private void completeAcquired() {
+            if (!future.complete(new ZookeeperLockHandle(lockPath))) {
+                // 拿到锁的同时已经超时或者被取消
+                deleteLockNodeAsync();
+            }
+        }
+
+        /**
+         * 发生异常需要删除节点，按重试策略等待后重新创建，最大重试次数MAX_RETRY_COUNT。
+         * 只判断一次的获取不重试，直接以异常结束
+         */
+        private void retryOrFail(Exception e) {
+            logger.error("acquire lock exception", e);
+            deleteLockNodeAsync();
+            lockPath = null;
+            // 会话过期后这个zooKeeper对象不能再用，重试也没有意义
+            boolean expired = e instanceof KeeperException.SessionExpiredException;
+            boolean oneShot = millisToWait != null && millisToWait <= 0;
+            if (!precreated && !expired && !oneShot && retryCount++ < MAX_RETRY_COUNT) {
+                if (future.isDone()) {
+                    return;
+                }
+                if (backoff == null) {
+                    backoff = backoffPolicy.newBackoff();
+                }
+                long delayNanos = backoff.nextDelayNanos();
+                if (delayNanos <= 0) {
+                    ensureRootPath();
+                } else {
+                    timer.schedule(new Runnable() {
+                        public void run() {
+                            if (!future.isDone()) {
+                                ensureRootPath();
+                            }
+                        }
+                    }, delayNanos, TimeUnit.NANOSECONDS);
+                }
+            } else {
+                future.completeExceptionally(e);
+            }
+        }
+
+        private void deleteLockNodeAsync() {
+            String path = lockPath;
+            if (path != null) {
+                ZookeeperDistributeLock.this.deleteLockNodeAsync(path);
+            }
+        }
+    }
+
+    /**
+     * 异步获取到的锁，释放时删除对应的节点
+     */
+    private class ZookeeperLockHandle implements LockHandle {
+        private final String lockPath;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        ZookeeperLockHandle(String lockPath) {
+            this.lockPath = lockPath;
+        }
+
+        @Override
+        public String getLockPath() {
+            return lockPath;
+        }
+
+        @Override
+        public long getFencingToken() {
+            return parseFencingToken(lockPath);
+        }
+
+        @Override
+        public void unlock() throws Exception {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                zooKeeper.delete(lockPath, -1);
+            } catch (KeeperException.NoNodeException e) {
+                logger.warn("lock node already deleted:{}", lockPath);
+            }
+            reclaimRootPathAsync();
+        }
+    }
 }
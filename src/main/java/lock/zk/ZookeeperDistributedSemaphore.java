@@ -0,0 +1,197 @@
+package lock.zk;
+
+import lock.DistributedSemaphore;
+import org.apache.zookeeper.*;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 使用zookeeper实现的分布式信号量，节点布局和BaseDistributedLock一样：
+ *      1. 每个许可对应rootPath下的一个临时顺序节点，获取n个许可时用一次multi()原子地创建n个节点，
+ *         同一个事务里创建的节点顺序号是连续的
+ *      2. 按顺序号排序后，自己最后一个节点排在前maxPermits个以内就拿到了许可，先来先得
+ *      3. 没拿到就通过会话共用的LockWatchDispatcher监视rootPath的子节点变化，有变化时重新判断，
+ *         同一个进程里的等待者共用一个watch，超时放弃的等待者不会在客户端留下watch
+ *      4. 归还许可就是删除对应的节点
+ * 获取许可不需要先拿到某个互斥锁，所有客户端只在自己的节点上排队
+ */
+public class ZookeeperDistributedSemaphore implements DistributedSemaphore {
+
+    private static Logger logger = LoggerFactory.getLogger(ZookeeperDistributedSemaphore.class);
+
+    private static final String PERMIT_PRE = "permit-";// 许可节点前缀
+
+    private final ZooKeeper zooKeeper;
+    private final String rootPath;// 根目录
+    private final int maxPermits;// 许可总数
+    private final ConcurrentLinkedDeque<String> heldPermits = new ConcurrentLinkedDeque<String>();// 本进程持有的许可节点
+
+    public ZookeeperDistributedSemaphore(ZooKeeper zooKeeper, String rootPath, int maxPermits) {
+        if (maxPermits <= 0) {
+            throw new IllegalArgumentException("maxPermits must greater than 0");
+        }
+        this.zooKeeper = zooKeeper;
+        this.rootPath = rootPath;
+        this.maxPermits = maxPermits;
+        init();
+    }
+
+    /**
+     * 初始化根目录
+     */
+    private void init() {
+        try {
+            Stat stat = zooKeeper.exists(rootPath, false);// 判断一下根目录是否存在
+            if (stat == null) {
+                zooKeeper.create(rootPath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
+        } catch (Exception e) {
+            logger.error("create rootPath error", e);
+        }
+    }
+
+    @Override
+    public void acquire(int permits) throws Exception {
+        // null表示阻塞等待，不设置超时时间
+        attemptAcquire(permits, null);
+    }
+
+    @Override
+    public boolean tryAcquire(int permits, long time, TimeUnit unit) throws Exception {
+        if (unit == null) {
+            throw new Exception("TimeUnit can not be null");
+        }
+        return attemptAcquire(permits, unit.toMillis(time));
+    }
+
+    @Override
+    public void release(int permits) throws Exception {
+        List<String> paths = new ArrayList<String>(permits);
+        for (int i = 0; i < permits; i++) {
+            String path = heldPermits.pollFirst();
+            if (path == null) {
+                heldPermits.addAll(paths);
+                throw new IllegalStateException("release more permits than acquired");
+            }
+            paths.add(path);
+        }
+        deletePermitNodes(paths);
+    }
+
+    private boolean attemptAcquire(int permits, Long millisToWait) throws Exception {
+        if (permits <= 0 || permits > maxPermits) {
+            throw new IllegalArgumentException("permits must between 1 and " + maxPermits);
+        }
+        List<String> ourPaths = createPermitNodes(permits);
+        boolean acquired = false;
+        try {
+            acquired = waitForPermits(ourPaths.get(ourPaths.size() - 1), millisToWait);
+        } finally {
+            if (acquired) {
+                heldPermits.addAll(ourPaths);
+            } else {
+                // 超时或者发生异常需要删除节点
+                deletePermitNodes(ourPaths);
+            }
+        }
+        return acquired;
+    }
+
+    /**
+     * 一次multi()创建permits个临时顺序节点
+     */
+    private List<String> createPermitNodes(int permits) throws Exception {
+        String path = rootPath.concat("/").concat(PERMIT_PRE);
+        List<Op> ops = new ArrayList<Op>(permits);
+        for (int i = 0; i < permits; i++) {
+            ops.add(Op.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL));
+        }
+        List<String> paths = new ArrayList<String>(permits);
+        for (OpResult result : zooKeeper.multi(ops)) {
+            paths.add(((OpResult.CreateResult) result).getPath());
+        }
+        return paths;
+    }
+
+    private void deletePermitNodes(List<String> paths) {
+        if (paths.isEmpty()) {
+            return;
+        }
+        List<Op> ops = new ArrayList<Op>(paths.size());
+        for (String path : paths) {
+            ops.add(Op.delete(path, -1));
+        }
+        try {
+            zooKeeper.multi(ops);
+        } catch (KeeperException e) {
+            // 有节点已经不存在时整个事务会失败，逐个删除
+            for (String path : paths) {
+                try {
+                    zooKeeper.delete(path, -1);
+                } catch (KeeperException.NoNodeException ignore) {
+                } catch (Exception ex) {
+                    logger.error("release permit error,path:" + path, ex);
+                }
+            }
+        } catch (Exception e) {
+            logger.error("release permits error", e);
+        }
+    }
+
+    /**
+     * 等待自己最后一个节点排进前maxPermits个
+     * @param lastPath 自己最后创建的节点
+     * @param millisToWait 为null表示一直等待
+     * @return
+     * @throws Exception
+     */
+    private boolean waitForPermits(String lastPath, Long millisToWait) throws Exception {
+        String lastNodeName = lastPath.substring(rootPath.length() + 1);
+        final long startMillis = System.currentTimeMillis();
+        LockWatchDispatcher watchDispatcher = LockWatchDispatcher.getInstance(zooKeeper);
+        while (true) {
+            final CountDownLatch latch = new CountDownLatch(1);
+            LockWatchDispatcher.ChildrenListener listener = new LockWatchDispatcher.ChildrenListener() {
+                public void childrenChanged(String path) {
+                    latch.countDown();
+                }
+
+                public void watchFailed(String path, KeeperException.Code code) {
+                    // 回到循环开头重新取子节点列表，连接有问题时那里会抛出异常
+                    latch.countDown();
+                }
+            };
+            // 先注册再取子节点列表，之后的变化都会通知到
+            watchDispatcher.watchChildren(rootPath, listener);
+            try {
+                List<String> children = zooKeeper.getChildren(rootPath, false);
+                int ourIndex = SortedChildren.of(children).indexOfNode(lastNodeName);
+                if (ourIndex < 0) {
+                    logger.error("not find node:{}", lastNodeName);
+                    throw new Exception("节点没有找到: " + lastNodeName);
+                }
+                if (ourIndex < maxPermits) {
+                    return true;
+                }
+
+                if (millisToWait == null) {
+                    latch.await();
+                } else {
+                    long remaining = millisToWait - (System.currentTimeMillis() - startMillis);
+                    if (remaining <= 0 || !latch.await(remaining, TimeUnit.MILLISECONDS)) {
+                        return false;
+                    }
+                }
+            } finally {
+                watchDispatcher.cancel(rootPath, listener);
+            }
+        }
+    }
+}
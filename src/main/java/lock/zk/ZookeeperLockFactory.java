@@ -0,0 +1,108 @@
+package lock.zk;
+
+import lock.LockFactory;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 为每个key创建ZookeeperDistributeLock，锁的根目录为basePath/key，配合LockRegistry使用：
+ *      new LockRegistry<ZookeeperDistributeLock>(new ZookeeperLockFactory(zooKeeper, "/locks", "lock-"))
+ * 记住已经创建过的根目录，锁对象被回收后再次创建时不用再访问zookeeper。
+ * 设置了ConnectionStateWatcher时，创建的锁都监听会话状态，锁对象被回收时移除监听
+ */
+public class ZookeeperLockFactory implements LockFactory<ZookeeperDistributeLock> {
+
+    private static Logger logger = LoggerFactory.getLogger(ZookeeperLockFactory.class);
+
+    private static final int MAX_KNOWN_ROOTS = 100000;// 最多记住多少个已经创建的根目录
+
+    private final ZooKeeper zooKeeper;
+    private final String basePath;// 所有锁根目录的父目录
+    private final String lockNamePre;// 锁前缀
+    private final int maxLocalHandoffs;// 小于0表示不开启分层模式
+    private final Set<String> createdRoots;// 已经确认存在的根目录
+    private volatile boolean reclaimEmptyRoots;// 锁释放后是否回收空的根目录
+    private volatile ConnectionStateWatcher connectionWatcher;// 创建的锁监听的会话状态，可以为null
+
+    public ZookeeperLockFactory(ZooKeeper zooKeeper, String basePath, String lockNamePre) {
+        this(zooKeeper, basePath, lockNamePre, -1);
+    }
+
+    public ZookeeperLockFactory(ZooKeeper zooKeeper, String basePath, String lockNamePre, int maxLocalHandoffs) {
+        this.zooKeeper = zooKeeper;
+        this.basePath = basePath;
+        this.lockNamePre = lockNamePre;
+        this.maxLocalHandoffs = maxLocalHandoffs;
+        this.createdRoots = Collections.newSetFromMap(Collections.synchronizedMap(new LinkedHashMap<String, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+                return size() > MAX_KNOWN_ROOTS;
+            }
+        }));
+        init();
+    }
+
+    /**
+     * 初始化父目录
+     */
+    private void init() {
+        try {
+            Stat stat = zooKeeper.exists(basePath, false);// 判断一下父目录是否存在
+            if (stat == null) {
+                zooKeeper.create(basePath, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            }
+        } catch (Exception e) {
+            logger.error("create basePath error", e);
+        }
+    }
+
+    /**
+     * 锁释放后回收空的根目录，避免大量只用过一次的key在zookeeper里留下空目录，
+     * 见ZookeeperDistributeLock.setReclaimEmptyRoot
+     * @param reclaimEmptyRoots
+     */
+    public void setReclaimEmptyRoots(boolean reclaimEmptyRoots) {
+        this.reclaimEmptyRoots = reclaimEmptyRoots;
+    }
+
+    /**
+     * 之后创建的锁都监听这个会话的状态，见ZookeeperDistributeLock.setConnectionStateWatcher
+     * @param connectionWatcher
+     */
+    public void setConnectionStateWatcher(ConnectionStateWatcher connectionWatcher) {
+        this.connectionWatcher = connectionWatcher;
+    }
+
+    @Override
+    public ZookeeperDistributeLock newLock(String key) {
+        String rootPath = basePath.concat("/").concat(key);
+        // 第一次用到这个根目录时才需要初始化，获取锁时发现根目录不存在也会自动创建
+        boolean initRootPath = createdRoots.add(rootPath);
+        ZookeeperDistributeLock lock = new ZookeeperDistributeLock(zooKeeper, rootPath, lockNamePre, maxLocalHandoffs, initRootPath);
+        lock.setReclaimEmptyRoot(reclaimEmptyRoots);
+        ConnectionStateWatcher watcher = connectionWatcher;
+        if (watcher != null) {
+            lock.setConnectionStateWatcher(watcher);
+        }
+        return lock;
+    }
+
+    @Override
+    public boolean isIdle(ZookeeperDistributeLock lock) {
+        return !lock.isLocked();
+    }
+
+    @Override
+    public void onEvicted(ZookeeperDistributeLock lock) {
+        lock.removeConnectionStateWatcher();
+    }
+}
@@ -0,0 +1,373 @@
+package lock.zk;
+
+import lock.BackoffPolicy;
+import lock.DistributeLock;
+import lock.ExponentialBackoffPolicy;
+import lock.LockHandle;
+import org.apache.zookeeper.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+
+/**
+ * 同时锁住多个资源的分布式锁，每个资源对应一个根目录：
+ *      1. 根目录按字典序排序，用一次multi()在所有根目录下原子地创建临时顺序节点
+ *      2. 同一个事务里创建的节点，在每个根目录下相对其它客户端的先后顺序都一样，所以并行等待也不会死锁
+ *      3. 所有根目录下都拿到锁才算成功，任何一个超时或者出错都会删除全部节点
+ *      4. 释放时用一次multi()删除全部节点
+ *      5. 根目录被别的锁回收(setReclaimEmptyRoot)后，创建节点时重新创建根目录再提交一次
+ * 和ZookeeperDistributeLock一样可重入，同一个锁对象上的线程先在本地排队
+ */
+public class ZookeeperMultiLock implements DistributeLock {
+
+    private static Logger logger = LoggerFactory.getLogger(ZookeeperMultiLock.class);
+
+    private static int MAX_RETRY_COUNT = 10;// 最大重试次数
+
+    private final ZooKeeper zooKeeper;
+    private final List<ZookeeperDistributeLock> locks;// 按根目录排好序的单个锁，用来等待各自的节点
+    private final ReentrantLock localLock = new ReentrantLock(true);// 本地排队锁，同时记录持有线程和重入次数
+    private LockHandle currentHandle;// 本地持有线程拿到的锁，只在持有localLock时读写
+    private volatile BackoffPolicy backoffPolicy = new ExponentialBackoffPolicy(10, 1000, TimeUnit.MILLISECONDS);// 出错重试之前的等待策略
+
+    public ZookeeperMultiLock(ZooKeeper zooKeeper, Collection<String> rootPaths, String lockNamePre) {
+        if (rootPaths == null || rootPaths.isEmpty()) {
+            throw new IllegalArgumentException("rootPaths can not be empty");
+        }
+        this.zooKeeper = zooKeeper;
+        this.locks = new ArrayList<ZookeeperDistributeLock>();
+        // 去重并按统一的顺序排列
+        for (String rootPath : new TreeSet<String>(rootPaths)) {
+            locks.add(new ZookeeperDistributeLock(zooKeeper, rootPath, lockNamePre));
+        }
+    }
+
+    /**
+     * 设置出错(例如网络闪断)后重新创建节点之前的等待策略
+     * @param backoffPolicy
+     */
+    public void setBackoffPolicy(BackoffPolicy backoffPolicy) {
+        this.backoffPolicy = backoffPolicy;
+    }
+
+    @Override
+    public boolean tryLock() throws Exception {
+        // 0表示只判断一次，不等待
+        return lockInternal(0, TimeUnit.MILLISECONDS, false);
+    }
+
+    @Override
+    public void lock() throws Exception {
+        // -1,null表示阻塞等待，不设置超时时间
+        lockInternal(-1, null, false);
+    }
+
+    @Override
+    public boolean lock(long time, TimeUnit unit) throws Exception {
+        if (time <= 0) {
+            throw new Exception("Lock wait for time must greater than 0");
+        }
+        if (unit == null) {
+            throw new Exception("TimeUnit can not be null");
+        }
+        return lockInternal(time, unit, true);
+    }
+
+    private boolean lockInternal(long time, TimeUnit unit, boolean useTimeout) throws Exception {
+        final long startMillis = System.currentTimeMillis();
+        if (useTimeout) {
+            if (!localLock.tryLock(time, unit)) {
+                return false;
+            }
+        } else if (unit == null) {
+            localLock.lock();
+        } else if (!localLock.tryLock()) {
+            return false;
+        }
+
+        boolean hasTheLock = false;
+        try {
+            if (localLock.getHoldCount() > 1) {
+                hasTheLock = true;
+            } else {
+                Long millisToWait = null;
+                if (unit != null) {
+                    // 本地排队已经花掉的时间要从zookeeper的等待时间里扣除
+                    millisToWait = useTimeout ? unit.toMillis(time) - (System.currentTimeMillis() - startMillis) : 0L;
+                    if (useTimeout && millisToWait <= 0) {
+                        return false;
+                    }
+                }
+                currentHandle = attemptLock(millisToWait);
+                hasTheLock = currentHandle != null;
+            }
+        } finally {
+            if (!hasTheLock) {
+                localLock.unlock();
+            }
+        }
+        return hasTheLock;
+    }
+
+    /**
+     * 阻塞等待异步流程的结果，网络闪断等异常时删除全部节点后重试，最大重试次数MAX_RETRY_COUNT。
+     * 只判断一次的获取不重试，直接抛出异常
+     */
+    private LockHandle attemptLock(Long millisToWait) throws Exception {
+        boolean oneShot = millisToWait != null && millisToWait <= 0;
+        int retryCount = 0;
+        BackoffPolicy.Backoff backoff = null;
+        while (true) {
+            CompletableFuture<LockHandle> future = acquire(millisToWait);
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                // 等待被中断就放弃本次获取，如果恰好已经拿到了锁，要把锁还回去
+                if (!future.cancel(false) && !future.isCompletedExceptionally()) {
+                    LockHandle acquired = future.getNow(null);
+                    if (acquired != null) {
+                        acquired.unlock();
+                    }
+                }
+                throw e;
+            } catch (ExecutionException e) {
+                logger.error("multi lock exception", e.getCause());
+                if (oneShot || retryCount++ >= MAX_RETRY_COUNT) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof Exception ? (Exception) cause : e;
+                }
+                if (backoff == null) {
+                    backoff = backoffPolicy.newBackoff();
+                }
+                long delayNanos = backoff.nextDelayNanos();
+                if (delayNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delayNanos);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void unlock() throws Exception {
+        if (!localLock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("current thread does not hold the lock");
+        }
+        try {
+            // 重入的unlock只减少本地计数
+            if (localLock.getHoldCount() == 1) {
+                LockHandle handle = currentHandle;
+                currentHandle = null;
+                handle.unlock();
+            }
+        } finally {
+            localLock.unlock();
+        }
+    }
+
+    /**
+     * 当前线程持有的锁的fencing token
+     * @return
+     */
+    public long getFencingToken() {
+        if (!localLock.isHeldByCurrentThread()) {
+            throw new IllegalMonitorStateException("current thread does not hold the lock");
+        }
+        return currentHandle.getFencingToken();
+    }
+
+    /**
+     * 创建节点的multi()是同步调用，之后的等待由各个根目录的异步流程并行完成
+     */
+    @Override
+    public CompletableFuture<LockHandle> lockAsync() {
+        return acquire(null);
+    }
+
+    @Override
+    public CompletableFuture<LockHandle> tryLockAsync(long time, TimeUnit unit) {
+        if (unit == null) {
+            throw new IllegalArgumentException("TimeUnit can not be null");
+        }
+        return acquire(unit.toMillis(time));
+    }
+
+    /**
+     * 一次multi()创建全部节点，然后并行等待每个根目录下的锁
+     * @param millisToWait 为null表示一直等待，小于等于0表示只判断一次
+     * @return
+     */
+    private CompletableFuture<LockHandle> acquire(Long millisToWait) {
+        final CompletableFuture<LockHandle> result = new CompletableFuture<LockHandle>();
+        List<String> lockPaths;
+        try {
+            lockPaths = createLockNodes();
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        final List<CompletableFuture<LockHandle>> waits = new ArrayList<CompletableFuture<LockHandle>>(locks.size());
+        for (int i = 0; i < locks.size(); i++) {
+            waits.add(locks.get(i).awaitLockNodeAsync(lockPaths.get(i), millisToWait));
+        }
+
+        // 任何一个根目录没拿到锁(超时、出错)，其它的也不用再等了，取消后各自的节点会被删除
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        BiConsumer<LockHandle, Throwable> failFast = new BiConsumer<LockHandle, Throwable>() {
+            public void accept(LockHandle handle, Throwable throwable) {
+                if (handle == null && failed.compareAndSet(false, true)) {
+                    for (CompletableFuture<LockHandle> wait : waits) {
+                        wait.cancel(false);
+                    }
+                }
+            }
+        };
+        for (CompletableFuture<LockHandle> wait : waits) {
+            wait.whenComplete(failFast);
+        }
+        // 调用方取消时也要放弃等待
+        result.whenComplete(new BiConsumer<LockHandle, Throwable>() {
+            public void accept(LockHandle handle, Throwable throwable) {
+                if (handle == null) {
+                    failFast.accept(null, throwable);
+                }
+            }
+        });
+
+        CompletableFuture.allOf(waits.toArray(new CompletableFuture[waits.size()])).whenComplete(new BiConsumer<Void, Throwable>() {
+            public void accept(Void ignore, Throwable throwable) {
+                List<LockHandle> handles = new ArrayList<LockHandle>(waits.size());
+                Throwable error = null;
+                for (CompletableFuture<LockHandle> wait : waits) {
+                    try {
+                        LockHandle handle = wait.getNow(null);
+                        if (handle != null) {
+                            handles.add(handle);
+                        }
+                    } catch (Exception e) {
+                        if (error == null && !wait.isCancelled()) {
+                            error = e.getCause() != null ? e.getCause() : e;
+                        }
+                    }
+                }
+                if (handles.size() == waits.size() && result.complete(new MultiLockHandle(handles))) {
+                    return;
+                }
+                // 只拿到了一部分，或者调用方已经放弃，异步删除已经拿到的节点
+                for (LockHandle handle : handles) {
+                    locks.get(0).deleteLockNodeAsync(handle.getLockPath());
+                }
+                if (error != null) {
+                    result.completeExceptionally(error);
+                } else {
+                    result.complete(null);
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 在所有根目录下原子地创建临时顺序节点，返回的节点和locks一一对应。
+     * 有根目录不存在时整个事务失败，什么都不会创建，重新创建根目录后再提交一次
+     */
+    private List<String> createLockNodes() throws Exception {
+        List<Op> ops = new ArrayList<Op>(locks.size());
+        for (ZookeeperDistributeLock lock : locks) {
+            String path = lock.getRootPath().concat("/").concat(lock.getLockNamePre());
+            ops.add(Op.create(path, null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.EPHEMERAL_SEQUENTIAL));
+        }
+        List<OpResult> results;
+        try {
+            results = zooKeeper.multi(ops);
+        } catch (KeeperException.NoNodeException e) {
+            logger.warn("lock root path missing,recreate and retry", e);
+            createRootPaths();
+            results = zooKeeper.multi(ops);
+        }
+        List<String> lockPaths = new ArrayList<String>(locks.size());
+        for (OpResult result : results) {
+            lockPaths.add(((OpResult.CreateResult) result).getPath());
+        }
+        return lockPaths;
+    }
+
+    /**
+     * 创建不存在的根目录，别人同时创建了也没关系
+     */
+    private void createRootPaths() throws Exception {
+        for (ZookeeperDistributeLock lock : locks) {
+            try {
+                zooKeeper.create(lock.getRootPath(), null, ZooDefs.Ids.OPEN_ACL_UNSAFE, CreateMode.PERSISTENT);
+            } catch (KeeperException.NodeExistsException e) {
+                // 根目录还在
+            }
+        }
+    }
+
+    /**
+     * 同时持有的多个锁，释放时用一次multi()删除全部节点
+     */
+    private class MultiLockHandle implements LockHandle {
+        private final List<LockHandle> handles;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        MultiLockHandle(List<LockHandle> handles) {
+            this.handles = handles;
+        }
+
+        @Override
+        public String getLockPath() {
+            StringBuilder builder = new StringBuilder();
+            for (LockHandle handle : handles) {
+                if (builder.length() > 0) {
+                    builder.append(',');
+                }
+                builder.append(handle.getLockPath());
+            }
+            return builder.toString();
+        }
+
+        /**
+         * 各个根目录下token的最大值。每个根目录的token都在递增，同一组资源上后拿到的锁的最大值也一定更大
+         */
+        @Override
+        public long getFencingToken() {
+            long token = 0;
+            for (LockHandle handle : handles) {
+                token = Math.max(token, handle.getFencingToken());
+            }
+            return token;
+        }
+
+        @Override
+        public void unlock() throws Exception {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            List<Op> ops = new ArrayList<Op>(handles.size());
+            for (LockHandle handle : handles) {
+                ops.add(Op.delete(handle.getLockPath(), -1));
+            }
+            try {
+                zooKeeper.multi(ops);
+            } catch (KeeperException.NoNodeException e) {
+                // 有节点已经不存在时整个事务会失败，逐个删除
+                logger.warn("lock node already deleted,unlock one by one", e);
+                for (LockHandle handle : handles) {
+                    handle.unlock();
+                }
+            }
+        }
+    }
+}
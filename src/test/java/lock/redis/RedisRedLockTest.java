@@ -0,0 +1,179 @@
+package lock.redis;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * RedisRedLock的测试：
+ *      1. 过半数和有效时间的计算不需要redis
+ *      2. 加锁、释放用本机6379、6380、6381三个相互独立的redis代替三个master，没有启动时跳过
+ */
+public class RedisRedLockTest {
+
+    private static final int[] PORTS = {6379, 6380, 6381};
+
+    private final List<JedisPool> pools = new ArrayList<JedisPool>();
+    private String lockKey;
+
+    @Before
+    public void setUp() {
+        lockKey = "redlock-test-" + UUID.randomUUID();
+        for (int port : PORTS) {
+            JedisPool pool = new JedisPool(new JedisPoolConfig(), "127.0.0.1", port, 200);
+            pools.add(pool);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (JedisPool pool : pools) {
+            pool.destroy();
+        }
+    }
+
+    @Test
+    public void quorumIsMajority() {
+        assertEquals(1, RedisRedLock.quorumOf(1));
+        assertEquals(2, RedisRedLock.quorumOf(2));
+        assertEquals(2, RedisRedLock.quorumOf(3));
+        assertEquals(3, RedisRedLock.quorumOf(4));
+        assertEquals(3, RedisRedLock.quorumOf(5));
+    }
+
+    @Test
+    public void validitySubtractsElapsedAndDrift() {
+        // 1%的漂移加2毫秒
+        assertEquals(102, RedisRedLock.driftMillis(10000));
+        assertEquals(2, RedisRedLock.driftMillis(50));
+        assertEquals(10000 - 300 - 102, RedisRedLock.validityMillis(10000, 300));
+        assertTrue(RedisRedLock.validityMillis(100, 97) <= 0);
+    }
+
+    @Test
+    public void acquiresOnQuorumAndReleases() throws InterruptedException {
+        assumeNodesAvailable();
+        RedisRedLock lock = new RedisRedLock(pools, lockKey, 10000);
+        assertTrue(lock.tryLock());
+        assertTrue(lock.getRemainingValidityMillis() > 0);
+        // 过半数成功就返回，最慢的那个节点可能还没有执行SET
+        assertTrue(countHolders() >= RedisRedLock.quorumOf(pools.size()));
+        // 等最慢的SET落定，否则它可能在释放的比较并删除之后才到
+        awaitHolders(pools.size());
+
+        // 有效时间很短：失败时没等到的SET即使在它的释放之后才到，也很快过期
+        RedisRedLock other = new RedisRedLock(pools, lockKey, 500);
+        assertFalse(other.tryLock());
+
+        lock.unlock();
+        awaitHolders(0);
+        assertEquals(0, countHolders());
+        assertTrue(other.tryLock());
+        other.unlock();
+    }
+
+    @Test
+    public void acquiresWithOneNodeTaken() {
+        assumeNodesAvailable();
+        set(pools.get(0), "someone-else");
+        RedisRedLock lock = new RedisRedLock(pools, lockKey, 10000);
+        assertTrue(lock.tryLock());
+        lock.unlock();
+        // 别人的锁不会被释放
+        assertEquals("someone-else", get(pools.get(0)));
+        del(pools.get(0));
+    }
+
+    @Test
+    public void failsWithoutQuorumAndReleasesPartialLocks() throws InterruptedException {
+        assumeNodesAvailable();
+        set(pools.get(0), "someone-else");
+        set(pools.get(1), "someone-else");
+        RedisRedLock lock = new RedisRedLock(pools, lockKey, 10000);
+        assertFalse(lock.tryLock());
+        assertEquals(0, lock.getRemainingValidityMillis());
+        // 失败时的释放不等回应，稍等一下再检查第三个节点
+        long deadline = System.currentTimeMillis() + 2000;
+        while (get(pools.get(2)) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(get(pools.get(2)));
+        del(pools.get(0));
+        del(pools.get(1));
+    }
+
+    private int countHolders() {
+        int holders = 0;
+        for (JedisPool pool : pools) {
+            if (get(pool) != null) {
+                holders++;
+            }
+        }
+        return holders;
+    }
+
+    /**
+     * 等待持有key的节点数变成expected，最多等2秒
+     */
+    private void awaitHolders(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (countHolders() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private void assumeNodesAvailable() {
+        for (JedisPool pool : pools) {
+            try {
+                Jedis jedis = pool.getResource();
+                try {
+                    jedis.ping();
+                } finally {
+                    jedis.close();
+                }
+            } catch (Exception e) {
+                Assume.assumeNoException("redis node not available", e);
+            }
+        }
+    }
+
+    private String get(JedisPool pool) {
+        Jedis jedis = pool.getResource();
+        try {
+            return jedis.get(lockKey);
+        } finally {
+            jedis.close();
+        }
+    }
+
+    private void set(JedisPool pool, String value) {
+        Jedis jedis = pool.getResource();
+        try {
+            jedis.set(lockKey, value);
+        } finally {
+            jedis.close();
+        }
+    }
+
+    private void del(JedisPool pool) {
+        Jedis jedis = pool.getResource();
+        try {
+            jedis.del(lockKey);
+        } finally {
+            jedis.close();
+        }
+    }
+}